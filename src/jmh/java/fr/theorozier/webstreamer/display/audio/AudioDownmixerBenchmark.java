@@ -0,0 +1,129 @@
+package fr.theorozier.webstreamer.display.audio;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Compare the {@link AudioDownmixer} kernels with a scalar downmix of one absolute
+ * {@code get(i)} per sample, as previously done by {@code AudioStreamingBuffer}, for
+ * each supported sample format and a few channel counts.</p>
+ * <p>Input samples are direct buffers in native order, as given by FFmpeg frames, and
+ * the number of samples per channel is the size of an AAC frame.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioDownmixerBenchmark {
+
+	@Param({"S16", "S16P", "FLT", "FLTP"})
+	public String format;
+
+	@Param({"1", "2", "6"})
+	public int channels;
+
+	@Param({"1024"})
+	public int samples;
+
+	private Buffer[] planes;
+	private ShortBuffer dst;
+	private AudioDownmixer downmixer;
+
+	@Setup
+	public void setup() {
+
+		Random random = new Random(0);
+		boolean planar = this.format.endsWith("P");
+		boolean floating = this.format.startsWith("FLT");
+
+		int planeCount = planar ? this.channels : 1;
+		int planeSamples = planar ? this.samples : this.samples * this.channels;
+		this.planes = new Buffer[planeCount];
+
+		for (int p = 0; p < planeCount; ++p) {
+			ByteBuffer bytes = ByteBuffer.allocateDirect(planeSamples * (floating ? 4 : 2)).order(ByteOrder.nativeOrder());
+			if (floating) {
+				FloatBuffer plane = bytes.asFloatBuffer();
+				for (int i = 0; i < planeSamples; ++i) {
+					plane.put(i, random.nextFloat() * 2f - 1f);
+				}
+				this.planes[p] = plane;
+			} else {
+				ShortBuffer plane = bytes.asShortBuffer();
+				for (int i = 0; i < planeSamples; ++i) {
+					plane.put(i, (short) random.nextInt());
+				}
+				this.planes[p] = plane;
+			}
+		}
+
+		this.dst = ByteBuffer.allocateDirect(this.samples * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+		this.downmixer = new AudioDownmixer();
+
+	}
+
+	@Benchmark
+	public ShortBuffer kernel() {
+		this.dst.clear();
+		this.downmixer.convert(this.dst, this.planes, this.channels);
+		return this.dst;
+	}
+
+	@Benchmark
+	public ShortBuffer scalar() {
+		this.dst.clear();
+		int channels = this.channels;
+		int samples = this.samples;
+		if (this.planes.length > 1) {
+			if (this.planes[0] instanceof ShortBuffer) {
+				for (int i = 0; i < samples; ++i) {
+					int sum = 0;
+					for (int c = 0; c < channels; ++c) {
+						sum += ((ShortBuffer) this.planes[c]).get(i);
+					}
+					this.dst.put((short) (sum / channels));
+				}
+			} else {
+				for (int i = 0; i < samples; ++i) {
+					float sum = 0f;
+					for (int c = 0; c < channels; ++c) {
+						sum += ((FloatBuffer) this.planes[c]).get(i);
+					}
+					this.dst.put(toShort(sum / channels));
+				}
+			}
+		} else if (this.planes[0] instanceof ShortBuffer src) {
+			for (int i = 0; i < samples; ++i) {
+				int sum = 0;
+				for (int c = 0; c < channels; ++c) {
+					sum += src.get(i * channels + c);
+				}
+				this.dst.put((short) (sum / channels));
+			}
+		} else {
+			FloatBuffer src = (FloatBuffer) this.planes[0];
+			for (int i = 0; i < samples; ++i) {
+				float sum = 0f;
+				for (int c = 0; c < channels; ++c) {
+					sum += src.get(i * channels + c);
+				}
+				this.dst.put(toShort(sum / channels));
+			}
+		}
+		return this.dst;
+	}
+
+	private static short toShort(float sample) {
+		return (short) Math.max(-32768f, Math.min(32767f, sample * 32767f));
+	}
+
+}
@@ -0,0 +1,77 @@
+package fr.theorozier.webstreamer.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Compare the queue latency of a {@link TaskLane} on platform threads and on virtual
+ * threads. The lane is kept loaded with a number of blocking tasks in flight, like
+ * network requests, each one sleeping and then submitting the next one. Each operation
+ * submits a task and waits for it to start, so sampled times are the queue latency,
+ * reported with their percentiles.</p>
+ * <p>The platform lane has as many threads as the network lane of the mod. Virtual
+ * threads require Java 21+, their trials fail on older runtimes.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TaskLaneBenchmark {
+
+    /** Number of threads of the platform lane, as the network lane. */
+    private static final int THREADS = 4;
+    /** Time in milliseconds blocked by each task of the load. */
+    private static final long BLOCK_TIME = 5;
+
+    @Param({"false", "true"})
+    public boolean virtual;
+
+    /** Number of blocking tasks in flight. */
+    @Param({"0", "16", "256"})
+    public int load;
+
+    private TaskLane lane;
+    private volatile boolean running;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.lane = new TaskLane("Benchmark", THREADS, this.virtual);
+        if (this.lane.isVirtual() != this.virtual) {
+            throw new IllegalStateException("virtual threads are not supported by this runtime");
+        }
+        this.running = true;
+        for (int i = 0; i < this.load; i++) {
+            this.submitLoad();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.running = false;
+    }
+
+    private void submitLoad() {
+        this.lane.execute(() -> {
+            try {
+                Thread.sleep(BLOCK_TIME);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (this.running) {
+                this.submitLoad();
+            }
+        }, 0);
+    }
+
+    @Benchmark
+    public void queueLatency() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        this.lane.execute(started::countDown, 0);
+        started.await();
+    }
+
+}
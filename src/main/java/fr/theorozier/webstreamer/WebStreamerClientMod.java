@@ -3,11 +3,13 @@ package fr.theorozier.webstreamer;
 import fr.theorozier.webstreamer.twitch.TwitchClient;
 import fr.theorozier.webstreamer.display.render.DisplayBlockEntityRenderer;
 import fr.theorozier.webstreamer.display.render.DisplayLayerManager;
+import fr.theorozier.webstreamer.display.render.DisplayLayerSimple;
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.blockrenderlayer.v1.BlockRenderLayerMap;
 import net.fabricmc.fabric.api.client.rendering.v1.BlockEntityRendererRegistry;
+import net.fabricmc.fabric.api.client.rendering.v1.CoreShaderRegistrationCallback;
 import net.minecraft.client.render.RenderLayer;
 import org.bytedeco.ffmpeg.global.avutil;
 import org.bytedeco.javacv.FFmpegLogCallback;
@@ -23,6 +25,7 @@ public class WebStreamerClientMod implements ClientModInitializer {
 
         BlockEntityRendererRegistry.register(WebStreamerMod.DISPLAY_BLOCK_ENTITY, DisplayBlockEntityRenderer::new);
         BlockRenderLayerMap.INSTANCE.putBlock(WebStreamerMod.DISPLAY_BLOCK, RenderLayer.getCutout());
+        CoreShaderRegistrationCallback.EVENT.register(DisplayLayerSimple::registerPrograms);
     
         DISPLAY_LAYERS = new DisplayLayerManager();
         TWITCH_CLIENT = new TwitchClient();
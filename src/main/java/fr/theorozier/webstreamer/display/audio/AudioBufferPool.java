@@ -0,0 +1,75 @@
+package fr.theorozier.webstreamer.display.audio;
+
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.openal.AL11.*;
+
+/**
+ * <p>A pool of OpenAL buffer names, recycled instead of being generated and deleted for
+ * each decoded audio frame. There is one pool per {@link AudioStreamingSource}, names
+ * are acquired when buffers are uploaded and released once unqueued from the source,
+ * both on the render thread.</p>
+ * <p>Names released after the pool has been freed are deleted directly.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class AudioBufferPool {
+
+	/** Maximum number of unused names kept, more are deleted. */
+	private static final int MAX_POOLED = 256;
+
+	private int[] names = new int[32];
+	private int count = 0;
+	private boolean freed = false;
+
+	/**
+	 * @return An unused buffer name, generated if the pool is empty.
+	 */
+	public synchronized int acquire() {
+		if (this.count > 0) {
+			return this.names[--this.count];
+		} else {
+			return alGenBuffers();
+		}
+	}
+
+	/**
+	 * Release a buffer name to the pool, it must not be queued on any source.
+	 * @param name The buffer name.
+	 */
+	public synchronized void release(int name) {
+		if (this.freed || this.count == MAX_POOLED) {
+			alDeleteBuffers(name);
+		} else {
+			if (this.count == this.names.length) {
+				this.names = Arrays.copyOf(this.names, Math.min(this.count * 2, MAX_POOLED));
+			}
+			this.names[this.count++] = name;
+		}
+	}
+
+	/**
+	 * Release all remaining buffer names of the given buffer to the pool.
+	 * @param names The buffer of names, its position is moved to its limit.
+	 */
+	public synchronized void release(IntBuffer names) {
+		while (names.hasRemaining()) {
+			this.release(names.get());
+		}
+	}
+
+	/**
+	 * Delete all pooled names, names released after are deleted directly.
+	 */
+	public synchronized void free() {
+		for (int i = 0; i < this.count; ++i) {
+			alDeleteBuffers(this.names[i]);
+		}
+		this.count = 0;
+		this.freed = true;
+	}
+
+}
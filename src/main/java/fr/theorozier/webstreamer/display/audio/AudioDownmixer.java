@@ -0,0 +1,205 @@
+package fr.theorozier.webstreamer.display.audio;
+
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * <p>Conversion kernels from decoded audio samples to mono 16 bits samples, for 16 bits
+ * integer and 32 bits float samples, interleaved or planar, with any number of channels
+ * that are averaged together.</p>
+ * <p>Samples are read and written in bulk through reusable arrays, and computed with
+ * simple counted loops over these arrays, that the JIT compiler can vectorize, instead
+ * of one buffer access per sample.</p>
+ * <p>This is not thread-safe, each frame grabber has its own downmixer.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class AudioDownmixer {
+
+	private short[] shortInput = new short[0];
+	private float[] floatInput = new float[0];
+	private int[] intSum = new int[0];
+	private float[] floatSum = new float[0];
+	private short[] output = new short[0];
+
+	/**
+	 * @param planes The sample buffers, one per channel if planar, or a single one.
+	 * @param channels The number of channels.
+	 * @return The number of samples per channel.
+	 */
+	public static int getSampleCount(Buffer[] planes, int channels) {
+		return planes.length > 1 ? planes[0].remaining() : planes[0].remaining() / channels;
+	}
+
+	/**
+	 * Convert samples to mono 16 bits and append them to the given buffer.
+	 * @param dst The destination buffer, written from its position, which is moved.
+	 * @param planes The sample buffers, one per channel if planar, or a single one with
+	 *               interleaved samples, 16 bits integer or 32 bits float.
+	 * @param channels The number of channels.
+	 * @return The number of mono samples appended.
+	 */
+	public int convert(ShortBuffer dst, Buffer[] planes, int channels) {
+
+		if (channels < 1) {
+			throw new IllegalArgumentException("illegal channels count: " + channels);
+		}
+
+		boolean planar = planes.length > 1;
+		if (planar && planes.length != channels) {
+			throw new IllegalArgumentException("planes count doesn't match channels count");
+		}
+
+		int samples = getSampleCount(planes, channels);
+
+		if (planes[0] instanceof ShortBuffer) {
+			if (planar) {
+				this.convertShortPlanar(planes, channels, samples);
+			} else {
+				this.convertShortInterleaved((ShortBuffer) planes[0], channels, samples);
+			}
+		} else if (planes[0] instanceof FloatBuffer) {
+			if (planar) {
+				this.convertFloatPlanar(planes, channels, samples);
+			} else {
+				this.convertFloatInterleaved((FloatBuffer) planes[0], channels, samples);
+			}
+		} else {
+			throw new IllegalArgumentException("unsupported sample format");
+		}
+
+		dst.put(this.output, 0, samples);
+		return samples;
+
+	}
+
+	private void convertShortInterleaved(ShortBuffer src, int channels, int samples) {
+
+		int count = samples * channels;
+		short[] input = this.shortInput = ensureCapacity(this.shortInput, count);
+		short[] output = this.output = ensureCapacity(this.output, samples);
+		src.get(src.position(), input, 0, count);
+
+		if (channels == 1) {
+			System.arraycopy(input, 0, output, 0, samples);
+		} else if (channels == 2) {
+			for (int i = 0; i < samples; ++i) {
+				output[i] = (short) ((input[i * 2] + input[i * 2 + 1]) >> 1);
+			}
+		} else {
+			for (int i = 0; i < samples; ++i) {
+				int sum = 0;
+				for (int c = 0; c < channels; ++c) {
+					sum += input[i * channels + c];
+				}
+				output[i] = (short) (sum / channels);
+			}
+		}
+
+	}
+
+	private void convertShortPlanar(Buffer[] planes, int channels, int samples) {
+
+		short[] input = this.shortInput = ensureCapacity(this.shortInput, samples);
+		int[] sum = this.intSum = ensureCapacity(this.intSum, samples);
+		short[] output = this.output = ensureCapacity(this.output, samples);
+
+		for (int c = 0; c < channels; ++c) {
+			ShortBuffer plane = (ShortBuffer) planes[c];
+			plane.get(plane.position(), input, 0, samples);
+			if (c == 0) {
+				for (int i = 0; i < samples; ++i) {
+					sum[i] = input[i];
+				}
+			} else {
+				for (int i = 0; i < samples; ++i) {
+					sum[i] += input[i];
+				}
+			}
+		}
+
+		if (channels == 2) {
+			for (int i = 0; i < samples; ++i) {
+				output[i] = (short) (sum[i] >> 1);
+			}
+		} else {
+			for (int i = 0; i < samples; ++i) {
+				output[i] = (short) (sum[i] / channels);
+			}
+		}
+
+	}
+
+	private void convertFloatInterleaved(FloatBuffer src, int channels, int samples) {
+
+		int count = samples * channels;
+		float[] input = this.floatInput = ensureCapacity(this.floatInput, count);
+		float[] sum = this.floatSum = ensureCapacity(this.floatSum, samples);
+		src.get(src.position(), input, 0, count);
+
+		if (channels == 2) {
+			for (int i = 0; i < samples; ++i) {
+				sum[i] = input[i * 2] + input[i * 2 + 1];
+			}
+		} else {
+			for (int i = 0; i < samples; ++i) {
+				float s = 0f;
+				for (int c = 0; c < channels; ++c) {
+					s += input[i * channels + c];
+				}
+				sum[i] = s;
+			}
+		}
+
+		this.convertFloatSum(sum, channels, samples);
+
+	}
+
+	private void convertFloatPlanar(Buffer[] planes, int channels, int samples) {
+
+		float[] input = this.floatInput = ensureCapacity(this.floatInput, samples);
+		float[] sum = this.floatSum = ensureCapacity(this.floatSum, samples);
+
+		FloatBuffer first = (FloatBuffer) planes[0];
+		first.get(first.position(), sum, 0, samples);
+
+		for (int c = 1; c < channels; ++c) {
+			FloatBuffer plane = (FloatBuffer) planes[c];
+			plane.get(plane.position(), input, 0, samples);
+			for (int i = 0; i < samples; ++i) {
+				sum[i] += input[i];
+			}
+		}
+
+		this.convertFloatSum(sum, channels, samples);
+
+	}
+
+	/**
+	 * Convert sums of float samples in [-1, 1] to averaged 16 bits samples, clamped.
+	 */
+	private void convertFloatSum(float[] sum, int channels, int samples) {
+		short[] output = this.output = ensureCapacity(this.output, samples);
+		float scale = 32767f / channels;
+		for (int i = 0; i < samples; ++i) {
+			float value = sum[i] * scale;
+			output[i] = (short) Math.max(-32768f, Math.min(32767f, value));
+		}
+	}
+
+	private static short[] ensureCapacity(short[] array, int capacity) {
+		return array.length >= capacity ? array : new short[capacity];
+	}
+
+	private static float[] ensureCapacity(float[] array, int capacity) {
+		return array.length >= capacity ? array : new float[capacity];
+	}
+
+	private static int[] ensureCapacity(int[] array, int capacity) {
+		return array.length >= capacity ? array : new int[capacity];
+	}
+
+}
@@ -0,0 +1,193 @@
+package fr.theorozier.webstreamer.display.audio;
+
+import fr.theorozier.webstreamer.WebStreamerMod;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.lwjgl.openal.AL11.*;
+
+/**
+ * <p>A global pool of OpenAL sources lent to {@link AudioStreamingSource}s. OpenAL
+ * implementations have a limited number of sources and Minecraft already uses most of
+ * them, so only a small number of sources are generated and lent to the streaming
+ * sources that would be the loudest.</p>
+ * <p>Streaming sources request a source on each tick where they can be heard, with a
+ * priority, and the pool is then updated: sources are lent to the requests with the
+ * highest priority, and reclaimed from streaming sources that have not requested one
+ * or that have a lower priority than others. Requests that cannot be served are
+ * starved, their streaming source stays silent until a source is available.</p>
+ * <p>The maximum number of sources can be changed with the
+ * {@code webstreamer.maxAudioSources} system property.</p>
+ * <p>Every call must be done from the render thread.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class AudioSourcePool {
+
+	/** Maximum number of sources generated, used or not. */
+	private static final int MAX_SOURCES = Math.max(1, Math.min(32, Integer.getInteger("webstreamer.maxAudioSources", 8)));
+	/** Priority factor of requests from streaming sources that already have a source,
+	 * to avoid swapping sources between streaming sources of close priorities. */
+	private static final float LENT_PRIORITY_FACTOR = 1.25f;
+	/** Minimum interval between two warnings about starved requests. */
+	private static final long STARVATION_LOG_INTERVAL = 30L * 1000000000L;
+
+	/** Generated sources that are not lent. */
+	private final int[] sources = new int[MAX_SOURCES];
+	private int count = 0;
+	/** Number of sources generated, used or not. */
+	private int allocatedCount = 0;
+
+	/** Requests of the current tick. */
+	private final List<Request> requests = new ArrayList<>();
+	/** Streaming sources that currently have a source. */
+	private final List<AudioStreamingSource> lent = new ArrayList<>();
+
+	/** Number of requests starved on the last update. */
+	private int starvedCount = 0;
+	/** Number of updates where at least one request was starved. */
+	private long starvedUpdates = 0;
+	/** Number of sources reclaimed from streaming sources that were not served anymore. */
+	private long reclaimedCount = 0;
+	/** Time in nanoseconds (monotonic) of the last starvation warning. */
+	private long lastStarvationLog = 0;
+
+	/**
+	 * Request a source for the given streaming source, only for the current tick.
+	 * @param source The streaming source to lend a source to.
+	 * @param priority The priority of the request, higher priorities are served first.
+	 */
+	void request(AudioStreamingSource source, float priority) {
+		if (source.hasSource()) {
+			priority *= LENT_PRIORITY_FACTOR;
+		}
+		this.requests.add(new Request(source, priority));
+	}
+
+	/**
+	 * Reclaim the source of the given streaming source, if any, and forget its requests.
+	 * @param source The streaming source.
+	 */
+	void release(AudioStreamingSource source) {
+		this.requests.removeIf(request -> request.source == source);
+		if (this.lent.remove(source)) {
+			this.sources[this.count++] = source.detachSource();
+		}
+	}
+
+	/**
+	 * Lend sources to the requests of the current tick, by priority, reclaiming them from
+	 * streaming sources that are not served anymore, this should be called once per
+	 * tick, after all streaming sources have requested.
+	 */
+	public void update() {
+
+		this.requests.sort(Comparator.comparingDouble(Request::priority).reversed());
+		int served = Math.min(this.requests.size(), MAX_SOURCES);
+
+		// Reclaim sources first, so they can be lent again.
+		for (int i = this.lent.size() - 1; i >= 0; --i) {
+			AudioStreamingSource source = this.lent.get(i);
+			if (!this.isServed(source, served)) {
+				this.lent.remove(i);
+				this.sources[this.count++] = source.detachSource();
+				this.reclaimedCount++;
+			}
+		}
+
+		int starved = this.requests.size() - served;
+		for (int i = 0; i < served; ++i) {
+			AudioStreamingSource source = this.requests.get(i).source;
+			if (!source.hasSource()) {
+				int sourceId = this.acquire();
+				if (sourceId == 0) {
+					starved++;
+					continue;
+				}
+				source.attachSource(sourceId);
+				this.lent.add(source);
+			}
+		}
+
+		this.requests.clear();
+		this.starvedCount = starved;
+
+		if (starved > 0) {
+			this.starvedUpdates++;
+			long now = System.nanoTime();
+			if (this.lastStarvationLog == 0 || now - this.lastStarvationLog >= STARVATION_LOG_INTERVAL) {
+				WebStreamerMod.LOGGER.warn("No audio source available for {} audible display(s), {} sources are lent (see webstreamer.maxAudioSources).", starved, this.lent.size());
+				this.lastStarvationLog = now;
+			}
+		}
+
+	}
+
+	private boolean isServed(AudioStreamingSource source, int served) {
+		for (int i = 0; i < served; ++i) {
+			if (this.requests.get(i).source == source) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return An unused source, generated if needed, or 0 if none is available.
+	 */
+	private int acquire() {
+
+		if (this.count > 0) {
+			return this.sources[--this.count];
+		} else if (this.allocatedCount >= MAX_SOURCES) {
+			return 0;
+		}
+
+		int sourceId = alGenSources();
+		if (AudioStreamingSource.checkErrors("audio source generation")) {
+			// The implementation has no more sources, don't try again until some are freed.
+			this.allocatedCount = MAX_SOURCES;
+			return 0;
+		}
+
+		this.allocatedCount++;
+		WebStreamerMod.LOGGER.debug("Number of allocated audio sources: {}/{}", this.allocatedCount, MAX_SOURCES);
+		return sourceId;
+
+	}
+
+	/**
+	 * Delete all unused sources, sources still lent are kept.
+	 */
+	public void free() {
+		for (int i = 0; i < this.count; ++i) {
+			alDeleteSources(this.sources[i]);
+		}
+		this.count = 0;
+		this.allocatedCount = this.lent.size();
+	}
+
+	/**
+	 * @return A snapshot of the sources occupancy.
+	 */
+	public AudioSourcePoolStats getStats() {
+		return new AudioSourcePoolStats(MAX_SOURCES, this.allocatedCount, this.lent.size(), this.starvedCount, this.starvedUpdates, this.reclaimedCount);
+	}
+
+	private record Request(AudioStreamingSource source, float priority) { }
+
+	/**
+	 * Occupancy of the sources pool.
+	 * @param capacity The maximum number of sources.
+	 * @param allocated The number of sources generated, used or not.
+	 * @param lent The number of sources currently lent.
+	 * @param starved The number of requests that couldn't be served on the last update.
+	 * @param starvedUpdates The number of updates with starved requests since startup.
+	 * @param reclaimed The number of sources reclaimed from streaming sources since startup.
+	 */
+	public record AudioSourcePoolStats(int capacity, int allocated, int lent, int starved, long starvedUpdates, long reclaimed) { }
+
+}
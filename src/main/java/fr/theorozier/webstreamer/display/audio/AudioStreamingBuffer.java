@@ -2,31 +2,41 @@ package fr.theorozier.webstreamer.display.audio;
 
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
-import org.bytedeco.javacv.Frame;
+import org.lwjgl.system.MemoryUtil;
 
-import java.nio.Buffer;
-import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
-import java.util.Objects;
 
 import static org.lwjgl.openal.AL11.*;
 
 /**
- * A streaming buffer abstraction, always mono channel / 16 bits.
+ * <p>A streaming buffer abstraction, always mono channel / 16 bits.</p>
+ * <p>Buffers are created by decoder threads with a copy of their samples, and uploaded
+ * to an OpenAL buffer by the render thread, see {@link #upload(AudioBufferPool)}, so
+ * that OpenAL is only used from the thread owning its context and its errors.</p>
  */
 @Environment(EnvType.CLIENT)
 public class AudioStreamingBuffer {
 	
+	/** The samples not yet uploaded, null once uploaded or freed. */
+	private ShortBuffer data;
+	/** The pool the buffer name is acquired from, null until uploaded. */
+	private AudioBufferPool pool;
 	private int bufferId;
 	/** When the buffer should be played. */
 	public final long timestamp;
 	/** Duration in microseconds. */
 	public final long duration;
+	/** Number of samples. */
+	public final int samples;
+	/** Sample rate. */
+	public final int frequency;
 	
-	private AudioStreamingBuffer(int bufferId, long timestamp, long duration) {
-		this.bufferId = bufferId;
+	private AudioStreamingBuffer(ShortBuffer data, long timestamp, int samples, int frequency) {
+		this.data = data;
 		this.timestamp = timestamp;
-		this.duration = duration;
+		this.duration = samples * 1000000L / frequency;
+		this.samples = samples;
+		this.frequency = frequency;
 	}
 	
 	public int getBufferId() {
@@ -34,6 +44,13 @@ public class AudioStreamingBuffer {
 	}
 	
 	public boolean isValid() {
+		return this.data != null || this.bufferId != 0;
+	}
+	
+	/**
+	 * @return True if the samples have been uploaded to an OpenAL buffer.
+	 */
+	public boolean isUploaded() {
 		return this.bufferId != 0;
 	}
 	
@@ -43,70 +60,76 @@ public class AudioStreamingBuffer {
 		}
 	}
 	
+	/**
+	 * Free this buffer, its samples if not uploaded, or its name is released to its pool.
+	 */
 	public void free() {
 		this.checkValid();
-		alDeleteBuffers(this.bufferId);
-		this.bufferId = 0;
-	}
-	
-	public static AudioStreamingBuffer fromFrame(ShortBuffer tempBuffer, Frame frame) {
-		Objects.requireNonNull(frame.samples, "given frame has no audio sample");
-		return fromRawData(tempBuffer, frame.samples[0], frame.audioChannels, frame.sampleRate, frame.timestamp);
+		if (this.data != null) {
+			MemoryUtil.memFree(this.data);
+			this.data = null;
+		} else {
+			this.pool.release(this.bufferId);
+			this.bufferId = 0;
+		}
 	}
 	
-	public static AudioStreamingBuffer fromRawData(ShortBuffer tempBuffer, Buffer rawBuffer, int channels, int frequency, long timestamp) {
+	/**
+	 * Upload the samples to an OpenAL buffer, this must be called from the render thread,
+	 * the samples are freed. If OpenAL fails, the buffer is freed.
+	 * @param pool The pool to get the buffer name from.
+	 * @return True if uploaded, false if the buffer has been freed on error.
+	 */
+	public boolean upload(AudioBufferPool pool) {
 		
-		if (channels != 1 && channels != 2) {
-			throw new IllegalArgumentException("illegal channels count, only 1 or 2 are allowed");
+		this.checkValid();
+		if (this.data == null) {
+			return true;
 		}
 		
-		boolean stereo = (channels == 2);
-		int samples;
+		int bufferId = pool.acquire();
+		alBufferData(bufferId, AL_FORMAT_MONO16, this.data, this.frequency);
+		MemoryUtil.memFree(this.data);
+		this.data = null;
 		
-		if (rawBuffer instanceof ByteBuffer sampleByte) {
-			int count = sampleByte.remaining();
-			if (stereo) {
-				samples = count / 2;
-				for (int i = 0; i < count; i += 2) {
-					short sampleLeft = (short) ((int) sampleByte.get(i) << 8);
-					short sampleRight = (short) ((int) sampleByte.get(i + 1) << 8);
-					tempBuffer.put((short) ((sampleLeft + sampleRight) / 2));
-				}
-			} else {
-				samples = count;
-				for (int i = 0; i < count; i++) {
-					tempBuffer.put((short) (sampleByte.get(i) << 8));
-				}
-			}
-			tempBuffer.flip();
-		} else if (rawBuffer instanceof ShortBuffer sampleShort) {
-			int count = sampleShort.remaining();
-			if (stereo) {
-				samples = count / 2;
-				for (int i = 0; i < count; i += 2) {
-					short sampleLeft = sampleShort.get(i);
-					short sampleRight = sampleShort.get(i + 1);
-					tempBuffer.put((short) (((int) sampleLeft + (int) sampleRight) / 2));
-				}
-				tempBuffer.flip();
-			} else {
-				samples = count;
-				// No operation is needed, just change the temp buffer.
-				// No flip is needed because input raw buffer is already.
-				tempBuffer = sampleShort;
-			}
-		} else {
-			throw new IllegalArgumentException("unsupported sample format");
+		if (AudioStreamingSource.checkErrors("audio buffer data")) {
+			pool.release(bufferId);
+			return false;
 		}
 		
-		int bufferId = alGenBuffers();
-		alBufferData(bufferId, AL_FORMAT_MONO16, tempBuffer, frequency);
-		
-		AudioStreamingSource.checkErrors("audio buffer data");
-		
-		long duration = samples * 1000000L / frequency;
-		return new AudioStreamingBuffer(bufferId, timestamp, duration);
+		this.pool = pool;
+		this.bufferId = bufferId;
+		return true;
 		
 	}
 	
+	/**
+	 * Detach the buffer name from this buffer, the name is then owned by the caller,
+	 * this is used when the name is queued on a source.
+	 * @return The buffer name.
+	 */
+	int detach() {
+		if (!this.isUploaded()) {
+			throw new IllegalStateException("this audio buffer has not been uploaded");
+		}
+		int bufferId = this.bufferId;
+		this.bufferId = 0;
+		return bufferId;
+	}
+	
+	/**
+	 * Create a buffer from a copy of mono 16 bits samples, from any thread, it must then
+	 * be uploaded by the render thread.
+	 * @param data The samples, from position to limit, the position is not moved.
+	 * @param frequency The sample rate.
+	 * @param timestamp The timestamp of the first sample, in microseconds.
+	 * @return The new buffer.
+	 */
+	public static AudioStreamingBuffer fromMonoData(ShortBuffer data, int frequency, long timestamp) {
+		int samples = data.remaining();
+		ShortBuffer copy = MemoryUtil.memAllocShort(samples);
+		MemoryUtil.memCopy(data, copy);
+		return new AudioStreamingBuffer(copy, timestamp, samples, frequency);
+	}
+	
 }
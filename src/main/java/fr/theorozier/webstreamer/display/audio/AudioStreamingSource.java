@@ -4,30 +4,52 @@ import fr.theorozier.webstreamer.WebStreamerMod;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.minecraft.util.math.Vec3i;
+import org.lwjgl.system.MemoryUtil;
 
+import java.nio.IntBuffer;
 import java.util.ArrayDeque;
 import java.util.Objects;
 
 import static org.lwjgl.openal.AL11.*;
 
+/**
+ * <p>A streaming OpenAL source, buffers are queued with their timestamp and played
+ * from a given timestamp.</p>
+ * <p>Each source has its own {@link AudioBufferPool}, buffers are uploaded to names
+ * acquired from it when queued, and names unqueued by the source are released to it.
+ * Names are queued and unqueued through a reusable native scratch buffer, so the
+ * steady state doesn't allocate.</p>
+ * <p>The OpenAL source itself is lent by an {@link AudioSourcePool} and must be
+ * requested on each tick where this source can be heard, see {@link #request(float)}.
+ * Without a lent source, buffers are kept until they are played and nothing is heard,
+ * the source's parameters are applied once a source is lent.</p>
+ */
 @Environment(EnvType.CLIENT)
 public class AudioStreamingSource {
 
-	private int sourceId;
+	private final AudioSourcePool sourcePool;
+	/** The lent OpenAL source, 0 if none. */
+	private int sourceId = 0;
+	private boolean freed = false;
+	private final AudioBufferPool bufferPool = new AudioBufferPool();
+	/** Scratch buffer of names to queue or unqueue, grown when needed. */
+	private IntBuffer scratchNames = MemoryUtil.memAllocInt(64);
 	
 	/** Real system nano timestamp when play started. */
 	private long playTimestamp;
 	private long playBufferTimestamp;
 	
 	private ArrayDeque<AudioStreamingBuffer> queue = new ArrayDeque<>();
+	/** Buffers queued on the OpenAL source, in order, their names have been detached. */
+	private final ArrayDeque<AudioStreamingBuffer> playingQueue = new ArrayDeque<>();
 	private long lastBufferTimestamp;
 	
-	public AudioStreamingSource() {
-		this.sourceId = alGenSources();
-		alSourcei(this.sourceId, AL_LOOPING, AL_FALSE);
-		alSourcei(this.sourceId, AL_SOURCE_RELATIVE, AL_FALSE);
-		this.setVolume(1f);
-		this.setAttenuation(50f);
+	private float x, y, z;
+	private float volume = 1f;
+	private float attenuation = 50f;
+	
+	public AudioStreamingSource(AudioSourcePool sourcePool) {
+		this.sourcePool = sourcePool;
 	}
 	
 	public int getSourceId() {
@@ -35,9 +57,54 @@ public class AudioStreamingSource {
 	}
 	
 	public boolean isValid() {
+		return !this.freed;
+	}
+	
+	/**
+	 * @return True if an OpenAL source is currently lent to this source.
+	 */
+	public boolean hasSource() {
 		return this.sourceId != 0;
 	}
 	
+	/**
+	 * Request an OpenAL source for the current tick, sources are lent to the requests with
+	 * the highest priorities, and reclaimed when not requested.
+	 * @param priority The priority, typically the gain at the listener position.
+	 */
+	public void request(float priority) {
+		this.checkValid();
+		this.sourcePool.request(this, priority);
+	}
+	
+	/**
+	 * Called by the pool when lending a source.
+	 */
+	void attachSource(int sourceId) {
+		this.sourceId = sourceId;
+		alSourcei(sourceId, AL_LOOPING, AL_FALSE);
+		alSourcei(sourceId, AL_SOURCE_RELATIVE, AL_FALSE);
+		alSource3f(sourceId, AL_POSITION, this.x, this.y, this.z);
+		this.applyVolume();
+		this.applyAttenuation();
+	}
+	
+	/**
+	 * Called by the pool when reclaiming the source, the source is stopped and cleared of
+	 * its buffers, buffers not yet queued are kept.
+	 * @return The reclaimed source.
+	 */
+	int detachSource() {
+		int sourceId = this.sourceId;
+		alSourceStop(sourceId);
+		// All buffers are processed once stopped.
+		this.unqueueAndFree();
+		alSourcei(sourceId, AL_BUFFER, 0);
+		this.playingQueue.clear();
+		this.sourceId = 0;
+		return sourceId;
+	}
+	
 	public void checkValid() {
 		if (!this.isValid()) {
 			throw new IllegalArgumentException("this audio source has already been freed");
@@ -49,45 +116,78 @@ public class AudioStreamingSource {
 		this.queue.forEach(AudioStreamingBuffer::free);
 		this.queue.clear();
 		this.queue = null;
-		alSourceStop(this.sourceId);
-		alDeleteSources(this.sourceId);
-		this.sourceId = 0;
+		this.sourcePool.release(this);
+		this.freed = true;
+		this.bufferPool.free();
+		MemoryUtil.memFree(this.scratchNames);
+		this.scratchNames = null;
 	}
 	
-	/** Manually stop the source, when doing that all queued buffers are freed and cleared. */
+	/**
+	 * Manually stop the source, when doing that all queued buffers are freed and cleared.
+	 * Buffers with any timestamp can then be queued again.
+	 */
 	public void stop() {
 		this.checkValid();
-		alSourceStop(this.sourceId);
+		if (this.sourceId != 0) {
+			alSourceStop(this.sourceId);
+		}
 		this.queue.forEach(AudioStreamingBuffer::free);
 		this.queue.clear();
+		this.lastBufferTimestamp = 0;
 	}
 	
 	public void setPosition(Vec3i pos) {
 		this.checkValid();
-		alSourcefv(this.sourceId, AL_POSITION, new float[] {(float) pos.getX() + 0.5f, (float) pos.getY() + 0.5f, (float) pos.getZ() + 0.5f});
+		this.x = (float) pos.getX() + 0.5f;
+		this.y = (float) pos.getY() + 0.5f;
+		this.z = (float) pos.getZ() + 0.5f;
+		if (this.sourceId != 0) {
+			alSource3f(this.sourceId, AL_POSITION, this.x, this.y, this.z);
+		}
 	}
 	
 	public void setVolume(float volume) {
 		this.checkValid();
-		alSourcef(this.sourceId, AL_GAIN, volume);
+		this.volume = volume;
+		if (this.sourceId != 0) {
+			this.applyVolume();
+		}
 	}
 	
 	public void setAttenuation(float attenuation) {
 		this.checkValid();
+		this.attenuation = attenuation;
+		if (this.sourceId != 0) {
+			this.applyAttenuation();
+		}
+	}
+	
+	private void applyVolume() {
+		alSourcef(this.sourceId, AL_GAIN, this.volume);
+	}
+	
+	private void applyAttenuation() {
 		alSourcei(this.sourceId, AL_DISTANCE_MODEL, AL_LINEAR_DISTANCE);
-		alSourcef(this.sourceId, AL_MAX_DISTANCE, attenuation);
+		alSourcef(this.sourceId, AL_MAX_DISTANCE, this.attenuation);
 		alSourcef(this.sourceId, AL_ROLLOFF_FACTOR, 1.0F);
 		alSourcef(this.sourceId, AL_REFERENCE_DISTANCE, 0.0F);
 	}
 	
 	public boolean isPlaying() {
 		this.checkValid();
-		return alGetSourcei(this.sourceId, AL_SOURCE_STATE) == AL_PLAYING;
+		return this.sourceId != 0 && alGetSourcei(this.sourceId, AL_SOURCE_STATE) == AL_PLAYING;
 	}
 	
 	public void playFrom(long timestamp) {
 		
 		this.checkValid();
+		
+		if (this.sourceId == 0) {
+			// Nothing can be played, only drop buffers that are already late.
+			this.removeAndFreeBuffersBefore(timestamp);
+			return;
+		}
 	
 		boolean playing = this.isPlaying();
 		if (!playing) {
@@ -111,13 +211,15 @@ public class AudioStreamingSource {
 		long firstBufferTimestamp = -1L;
 		int buffersCount = this.queue.size();
 		
-		int[] buffers = new int[buffersCount];
+		IntBuffer buffers = this.getScratchNames(buffersCount);
 		for (int i = 0; i < buffersCount; ++i) {
 			AudioStreamingBuffer buffer = this.queue.removeFirst();
-			buffers[i] = buffer.getBufferId();
 			if (firstBufferTimestamp == -1L) {
 				firstBufferTimestamp = buffer.timestamp;
 			}
+			// Queued names are owned by the source until unqueued.
+			buffers.put(i, buffer.detach());
+			this.playingQueue.addLast(buffer);
 		}
 		
 		alSourceQueueBuffers(this.sourceId, buffers);
@@ -131,7 +233,8 @@ public class AudioStreamingSource {
 	}
 	
 	/**
-	 * Queue the given streaming buffer on this source.
+	 * Queue the given streaming buffer on this source, it's uploaded if not already, the
+	 * source then owns it and frees it if it can't be queued.
 	 * @param buffer A non-null streaming buffer.
 	 */
 	public void queueBuffer(AudioStreamingBuffer buffer) {
@@ -142,6 +245,11 @@ public class AudioStreamingSource {
 		
 		if (buffer.timestamp <= this.lastBufferTimestamp) {
 			WebStreamerMod.LOGGER.error("given {} us, expected more than {} us", buffer.timestamp, this.lastBufferTimestamp);
+			buffer.free();
+			return;
+		}
+		
+		if (!buffer.upload(this.bufferPool)) {
 			return;
 		}
 		
@@ -154,17 +262,60 @@ public class AudioStreamingSource {
 	 * Unqueue processed buffers and free them.
 	 */
 	public void unqueueAndFree() {
+		if (this.sourceId == 0) {
+			return;
+		}
 		int numProcessed = alGetSourcei(this.sourceId, AL_BUFFERS_PROCESSED);
 		if (numProcessed > 0) {
-			int[] buffers = new int[numProcessed];
+			IntBuffer buffers = this.getScratchNames(numProcessed);
 			alSourceUnqueueBuffers(this.sourceId, buffers);
 			if (!checkErrors("audio unqueue buffers")) {
-				alDeleteBuffers(buffers);
-				checkErrors("audio delete buffers");
+				this.bufferPool.release(buffers);
+				for (int i = 0; i < numProcessed; ++i) {
+					this.playingQueue.pollFirst();
+				}
 			}
 		}
 	}
 	
+	/**
+	 * Get the timestamp of the sample being played, from the sample offset of the source
+	 * within its queued buffers. Its precision depends on the OpenAL implementation,
+	 * usually a few milliseconds.
+	 * @return The timestamp in microseconds, or -1 if not playing.
+	 */
+	public long getPlaybackTimestamp() {
+		
+		if (!this.isPlaying()) {
+			return -1L;
+		}
+		
+		// The offset is relative to the first buffer still queued.
+		this.unqueueAndFree();
+		int offset = alGetSourcei(this.sourceId, AL_SAMPLE_OFFSET);
+		
+		for (AudioStreamingBuffer buffer : this.playingQueue) {
+			if (offset < buffer.samples) {
+				return buffer.timestamp + offset * 1000000L / buffer.frequency;
+			}
+			offset -= buffer.samples;
+		}
+		
+		return -1L;
+		
+	}
+	
+	/**
+	 * @return The scratch buffer of names, cleared and limited to the given count.
+	 */
+	private IntBuffer getScratchNames(int count) {
+		if (this.scratchNames.capacity() < count) {
+			this.scratchNames = MemoryUtil.memRealloc(this.scratchNames, Math.max(count, this.scratchNames.capacity() * 2));
+		}
+		this.scratchNames.clear().limit(count);
+		return this.scratchNames;
+	}
+	
 	private void removeAndFreeBuffersBefore(long timestamp) {
 		// System.out.println("removeAndFreeBuffersBefore(" + timestamp + ")");
 		while (!this.queue.isEmpty()) {
@@ -0,0 +1,150 @@
+package fr.theorozier.webstreamer.display.render;
+
+import fr.theorozier.webstreamer.playlist.PlaylistQuality;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+import java.util.List;
+
+/**
+ * <p>An adaptive bitrate controller choosing which variant of an HLS source a
+ * {@link DisplayLayerHls} should play, from the measured segment download throughput
+ * and the decoder's load.</p>
+ * <p>The controller switches down as soon as the current variant cannot be sustained,
+ * but only switches up after the higher variant has looked sustainable for several
+ * consecutive segments, and never twice within a minimum interval, this hysteresis
+ * avoids oscillating between two variants.</p>
+ * <p>Downloads can be pushed from any thread, every other method must be called from
+ * the render thread.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class AdaptiveBitrate {
+
+	/** Smoothing factor of the throughput average, per segment. */
+	private static final double THROUGHPUT_SMOOTHING = 0.3;
+	/** Switch down if the throughput is below the current variant's bandwidth times this factor. */
+	private static final double DOWN_THROUGHPUT_FACTOR = 1.2;
+	/** Switch up only if the throughput is above the higher variant's bandwidth times this factor. */
+	private static final double UP_THROUGHPUT_FACTOR = 2.0;
+	/** Switch down if the decoder spends more than this fraction of real time decoding. */
+	private static final double DOWN_DECODE_LOAD = 0.85;
+	/** Switch up only if the decoder load, estimated for the higher variant, is below this fraction. */
+	private static final double UP_DECODE_LOAD = 0.6;
+	/** Number of consecutive segments where the higher variant must look sustainable. */
+	private static final int UP_STABLE_SEGMENTS = 4;
+	/** Minimum interval between two switches. */
+	private static final long SWITCH_INTERVAL = 10L * 1000000000L;
+
+	/** Variants from the highest to the lowest bandwidth. */
+	private final List<PlaylistQuality> variants;
+	/** Index of the variant currently chosen. */
+	private int variant;
+
+	/** Average download throughput in bits per second, -1 if unknown. */
+	private double throughput = -1;
+	/** Number of consecutive updates where switching up looked sustainable. */
+	private int upStableCount;
+	/** Time in nanoseconds (monotonic) of the last switch. */
+	private long lastSwitch;
+	/** Total number of switches, for statistics. */
+	private int switchCount;
+
+	/**
+	 * @param variants The variants to choose from, from the highest to the lowest
+	 *                 bandwidth, the first one is chosen initially.
+	 */
+	public AdaptiveBitrate(List<PlaylistQuality> variants) {
+		this.variants = variants;
+		this.lastSwitch = System.nanoTime();
+	}
+
+	/**
+	 * @return The variant currently chosen.
+	 */
+	public PlaylistQuality getVariant() {
+		return this.variants.get(this.variant);
+	}
+
+	/**
+	 * Push the measure of a segment download, segments read from cache should not be
+	 * pushed because they don't measure the network.
+	 * @param size The number of bytes downloaded.
+	 * @param time The download duration, in nanoseconds.
+	 */
+	public synchronized void pushDownload(long size, long time) {
+		if (size <= 0 || time <= 0) {
+			return;
+		}
+		double sample = size * 8.0 * 1000000000.0 / time;
+		if (this.throughput < 0) {
+			this.throughput = sample;
+		} else {
+			this.throughput += (sample - this.throughput) * THROUGHPUT_SMOOTHING;
+		}
+	}
+
+	/**
+	 * @return The average download throughput in bits per second, -1 if unknown.
+	 */
+	public synchronized double getThroughput() {
+		return this.throughput;
+	}
+
+	/**
+	 * Update the chosen variant, this should be called on segment boundaries.
+	 * @param decodeLoad The current decoder load, see {@link FrameDecoder#getDecodeLoad()}.
+	 * @param stalled True if the playback has stalled since the last update.
+	 * @return True if the chosen variant has changed.
+	 */
+	public boolean update(double decodeLoad, boolean stalled) {
+
+		long now = System.nanoTime();
+		double throughput = this.getThroughput();
+		long bandwidth = this.getVariant().bandwidth();
+
+		boolean down = stalled
+				|| (throughput >= 0 && throughput < bandwidth * DOWN_THROUGHPUT_FACTOR)
+				|| decodeLoad > DOWN_DECODE_LOAD;
+
+		if (down) {
+			this.upStableCount = 0;
+			// Stalls switch down immediately, other conditions respect the interval.
+			if (this.variant < this.variants.size() - 1 && (stalled || now - this.lastSwitch >= SWITCH_INTERVAL)) {
+				return this.switchTo(this.variant + 1, now);
+			}
+			return false;
+		}
+
+		if (this.variant > 0 && throughput >= 0 && decodeLoad >= 0) {
+			long upBandwidth = this.variants.get(this.variant - 1).bandwidth();
+			// The decode cost is assumed to grow with the bandwidth.
+			double upDecodeLoad = bandwidth > 0 ? decodeLoad * upBandwidth / bandwidth : decodeLoad * 2;
+			if (throughput > upBandwidth * UP_THROUGHPUT_FACTOR && upDecodeLoad < UP_DECODE_LOAD) {
+				if (++this.upStableCount >= UP_STABLE_SEGMENTS && now - this.lastSwitch >= SWITCH_INTERVAL) {
+					return this.switchTo(this.variant - 1, now);
+				}
+				return false;
+			}
+		}
+
+		this.upStableCount = 0;
+		return false;
+
+	}
+
+	private boolean switchTo(int variant, long now) {
+		this.variant = variant;
+		this.upStableCount = 0;
+		this.lastSwitch = now;
+		this.switchCount++;
+		return true;
+	}
+
+	/**
+	 * @return The number of switches since this controller has been created.
+	 */
+	public int getSwitchCount() {
+		return this.switchCount;
+	}
+
+}
@@ -9,6 +9,8 @@ import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.minecraft.block.enums.BlockFace;
 import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.render.Camera;
+import net.minecraft.client.render.Frustum;
 import net.minecraft.client.font.TextRenderer;
 import net.minecraft.client.font.TextRenderer.TextLayerType;
 import net.minecraft.client.render.GameRenderer;
@@ -22,7 +24,9 @@ import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.item.ItemStack;
 import net.minecraft.text.Text;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Box;
 import net.minecraft.util.math.Direction;
+import net.minecraft.util.math.Vec3d;
 import net.minecraft.util.shape.VoxelShape;
 
 import org.joml.AxisAngle4d;
@@ -69,9 +73,25 @@ public class DisplayBlockEntityRenderer implements BlockEntityRenderer<DisplayBl
         DisplayLayerManager layerManager = WebStreamerClientMod.DISPLAY_LAYERS;
         Text statusText = null;
         
+        BlockPos pos = entity.getPos();
+        Camera camera = this.gameRenderer.getCamera();
+        float viewDist = (float) camera.getPos().distanceTo(Vec3d.ofCenter(pos));
+        boolean visible = this.isVisible(entity);
+        
         // Asynchronously get the URI of this display, if the URI is not yet available,
         // null is just returned.
-        URI uri = renderData.getUri(layerManager.getResources().getExecutor());
+        int priority = DisplayLayerResources.getTaskPriority(viewDist, visible);
+        URI uri = renderData.getUri(layerManager.getResources(), priority);
+        
+        // Displays are rendered even when outside the view, see rendersOutsideBoundingBox,
+        // so they can still be heard, but nothing is drawn and no view is pushed, so the
+        // layer only decodes audio until the display is visible again.
+        if (!visible) {
+            if (uri != null) {
+                this.pushAudioOnly(layerManager, uri, entity, viewDist);
+            }
+            return;
+        }
         
         // If the player is currently holding a display item, we draw the outline shape
         // of the display block, we also display as status text the source status.
@@ -137,15 +157,26 @@ public class DisplayBlockEntityRenderer implements BlockEntityRenderer<DisplayBl
 
                 VertexConsumer buffer = vertexConsumers.getBuffer(layer.getRenderLayer());
     
-                BlockPos pos = entity.getPos();
                 float audioDistance = entity.getAudioDistance();
                 float audioVolume = entity.getAudioVolume();
-                layer.pushAudioSource(pos, pos.getManhattanDistance(this.gameRenderer.getCamera().getBlockPos()), audioDistance, audioVolume);
+                // The actual distance is used because it's compared to the audio distance.
+                layer.pushAudioSource(pos, viewDist, audioDistance, audioVolume);
 
                 // Width/Height end coords
                 float w = entity.getWidth();
                 float h = entity.getHeight();
 
+                // Approximate the fraction of the screen height covered by the display
+                // as if it was facing the camera, this is used for the level of detail
+                // and the size frames are decoded to.
+                MinecraftClient client = MinecraftClient.getInstance();
+                double fov = Math.toRadians(client.options.getFov().getValue());
+                double screenPerBlock = 1.0 / (2.0 * Math.max(viewDist, 0.5f) * Math.tan(fov / 2.0));
+                int screenHeight = client.getWindow().getFramebufferHeight();
+                layer.pushView(viewDist, (float) (Math.max(w, h) * screenPerBlock),
+                        (int) Math.ceil(w * screenPerBlock * screenHeight),
+                        (int) Math.ceil(h * screenPerBlock * screenHeight));
+
                 // Width/Height start coords
                 float hw = w / 2f;
                 float hh = h / 2f;
@@ -185,4 +216,47 @@ public class DisplayBlockEntityRenderer implements BlockEntityRenderer<DisplayBl
 
     }
 
+    /**
+     * Push the audio source of a display that is not visible, only if it can be heard,
+     * so that layers of displays that are neither visible nor audible are not kept.
+     */
+    private void pushAudioOnly(DisplayLayerManager layerManager, URI uri, DisplayBlockEntity entity, float viewDist) {
+
+        BlockPos pos = entity.getPos();
+        float audioDistance = entity.getAudioDistance();
+        float audioVolume = entity.getAudioVolume();
+        if (audioVolume <= 0f || viewDist > audioDistance) {
+            return;
+        }
+
+        try {
+            DisplayLayer layer = layerManager.getLayer(new DisplayLayerNode.Key(uri, entity));
+            if (!layer.isLost()) {
+                layer.pushAudioSource(pos, viewDist, audioDistance, audioVolume);
+            }
+        } catch (DisplayLayerNode.OutOfLayerException | DisplayLayerNode.UnknownFormatException e) {
+            // The status is displayed once visible.
+        }
+
+    }
+
+    /**
+     * @return True if the display may be visible in the current frustum.
+     */
+    private boolean isVisible(DisplayBlockEntity entity) {
+        Frustum frustum = ((WorldRendererInvoker) MinecraftClient.getInstance().worldRenderer).getFrustum();
+        if (frustum == null) {
+            return true;
+        }
+        // The display is centered up to one block away from its block depending on its
+        // attachment, and extends at most half its size around its center.
+        float extent = Math.max(entity.getWidth(), entity.getHeight()) / 2f + 1f;
+        return frustum.isVisible(new Box(entity.getPos()).expand(extent));
+    }
+
+    @Override
+    public boolean rendersOutsideBoundingBox(DisplayBlockEntity entity) {
+        return true;
+    }
+
 }
@@ -20,6 +20,19 @@ public interface DisplayLayer {
      */
     void pushAudioSource(Vec3i pos, float dist, float audioDistance, float audioVolume);
 
+    /**
+     * Each display entity that is using this layer and is visible will push how it's
+     * viewed by the local player to this function. This is used to choose the level of
+     * detail of the layer, which is the highest one pushed, a layer that is not pushed
+     * is considered not visible.
+     *
+     * @param dist The distance between the camera and the display.
+     * @param screenSize The approximate fraction of the screen height covered by the display.
+     * @param pixelWidth The approximate width of the display on screen, in pixels.
+     * @param pixelHeight The approximate height of the display on screen, in pixels.
+     */
+    void pushView(float dist, float screenSize, int pixelWidth, int pixelHeight);
+
     /**
      * @return True if this layer should be lost while currently used.
      */
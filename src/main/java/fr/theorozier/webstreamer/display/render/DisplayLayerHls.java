@@ -1,7 +1,9 @@
 package fr.theorozier.webstreamer.display.render;
 
 import fr.theorozier.webstreamer.WebStreamerMod;
+import fr.theorozier.webstreamer.display.audio.AudioStreamingBuffer;
 import fr.theorozier.webstreamer.display.audio.AudioStreamingSource;
+import fr.theorozier.webstreamer.playlist.PlaylistQuality;
 import fr.theorozier.webstreamer.util.AsyncMap;
 import fr.theorozier.webstreamer.util.AsyncProcessor;
 import io.lindstrom.m3u8.model.MediaPlaylist;
@@ -13,7 +15,6 @@ import net.fabricmc.api.Environment;
 import net.minecraft.util.math.Vec3i;
 import net.minecraft.util.profiler.ProfilerSystem;
 import net.minecraft.util.profiler.ReadableProfiler;
-import org.bytedeco.javacv.Frame;
 
 import java.io.IOException;
 import java.net.URI;
@@ -21,7 +22,8 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * There is only instance of this class per source.
@@ -33,14 +35,32 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 
 	/** The latency forced, avoiding display freezes for loading. */
 	private static final double SAFE_LATENCY = 8.0;
-	/** The timeout for grabber's request. */
-	private static final long GRABBER_REQUEST_TIMEOUT = 10L * 1000000000L;
-	/** Interval of internal cleanups (unused grabbers). */
+	/** The timeout for segment's request. */
+	private static final long SEGMENT_REQUEST_TIMEOUT = 10L * 1000000000L;
+	/** Delay before requesting again the current segment after its request has failed. */
+	private static final long FAILING_SEGMENT_REQUEST_DELAY = 1000000000L;
+	/** Interval of internal cleanups (unused segments). */
 	private static final long CLEANUP_INTERVAL = 10L * 1000000000L;
+	/** True to start decoding segments while they are downloaded, see {@link SegmentData}. */
+	private static final boolean STREAMING_SEGMENTS = true;
 	
 	private static final long INITIAL_PLAYLIST_REQUEST_INTERVAL = 500000000L; // 0.5 seconds
 	/** Interval of playlist requests when a past request has failed, to avoid spamming. */
 	private static final long FAILING_PLAYLIST_REQUEST_INTERVAL = 5L * 1000000000L;
+	/** Minimum screen height fraction of a display for decoding every frame. */
+	private static final float LOD_FULL_SCREEN_SIZE = 0.25f;
+	/** Minimum screen height fraction of a display for decoding every frame, at a reduced rate. */
+	private static final float LOD_REDUCED_SCREEN_SIZE = 0.08f;
+	/** Distance in blocks beyond which only key frames are decoded, whatever the screen size. */
+	private static final float LOD_KEY_FRAMES_DISTANCE = 64f;
+	/** Audio is decoded for displays up to this distance beyond their audio distance. */
+	private static final float AUDIO_ACTIVE_MARGIN = 8f;
+	/** Delay before stopping audio decoding once out of range, to avoid flickering. */
+	private static final long AUDIO_INACTIVE_DELAY = 2L * 1000000000L;
+	/** Delay before applying a lower level of detail, to avoid flickering between levels. */
+	private static final long LOD_DOWN_DELAY = 1000000000L;
+	/** Target sizes of decoded frames are rounded up to a multiple of this number of pixels. */
+	private static final int TARGET_SIZE_ROUNDING = 64;
 
     private final MediaPlaylistParser hlsParser;
 	private final ReadableProfiler profiler;
@@ -52,6 +72,12 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 
 	/** The asynchronous processor */
 	private final AsyncProcessor<URI, MediaPlaylist, IOException> asyncPlaylist;
+	/** Adaptive bitrate controller, null if the source has no variant to switch to. */
+	private final AdaptiveBitrate bitrate;
+	/** URI of the media playlist to play, this is the layer's URI unless switched to another variant. */
+	private URI playlistUri;
+	/** URI of the media playlist that the current segments come from. */
+	private URI playlistSegmentsUri;
     /** Segments from the current playlist. */
     private List<MediaSegment> playlistSegments;
     /** Segment offset of the current playlist. */
@@ -72,12 +98,37 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 	/** Duration of the current segment. */
     private double segmentDuration = 0.0;
 	
-	// Grabber //
- 
-	/** Frame grabber for the current segment. */
-    private FrameGrabber grabber;
-
-	private final AsyncMap<URI, FrameGrabber, IOException> asyncGrabbers;
+	// Decoder //
+
+	private final AsyncMap<SegmentRequest, RequestedSegment, IOException> asyncSegments;
+	/** Number of segments requested ahead of the current one, and stall statistics. */
+	private final SegmentPrefetch prefetch = new SegmentPrefetch();
+	/** Decoder thread, fed with segment inputs in segment order. */
+	private final FrameDecoder decoder;
+	/** Absolute index of the last segment pushed to the decoder, -1 if none. */
+	private int decoderSegmentIndex = -1;
+	/** URI of the media playlist of the last segment pushed to the decoder. */
+	private URI decoderPlaylistUri;
+	/** Time in nanoseconds (monotonic) before which the current segment is not requested again. */
+	private long segmentRetryTimestamp = 0;
+	/** The decoder's epoch currently presented, 0 if none. */
+	private int playbackEpoch = 0;
+	/** Timestamp within the presented epoch, in microseconds. */
+	private long playbackTimestamp = 0;
+	/** Clock advancing the playback, following the audio when playing. */
+	private final PlaybackClock clock = new PlaybackClock();
+	/** Drift of the audio too large for the clock, applied as a jump on the next fetch. */
+	private long playbackJump = 0;
+	/** Level of detail applied to the decoder. */
+	private FrameDecoder.Lod lod = FrameDecoder.Lod.FULL;
+	/** Target size of decoded frames applied to the decoder, 0 for the native size. */
+	private int targetWidth, targetHeight;
+	/** Highest level of detail pushed since the last tick. */
+	private FrameDecoder.Lod viewLod = FrameDecoder.Lod.POSTER;
+	/** Largest on-screen size pushed since the last tick, rounded up. */
+	private int viewWidth, viewHeight;
+	/** Time in nanoseconds (monotonic) since the pushed view is lower than the applied one. */
+	private long lodDownTimestamp = 0;
 	
 	// Sound //
 	
@@ -87,26 +138,52 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 	private float nearestAudioDist;
 	private float nearestAudioDistance;
 	private float nearestAudioVolume;
+	/** False if the decoder discards audio because no display can be heard. */
+	private boolean audioActive = true;
+	/** Time in nanoseconds (monotonic) of the last tick where a display could be heard. */
+	private long audioInRangeTimestamp = 0;
 
 	// Timing //
 	/** Time in nanoseconds (monotonic) of the last internal cleanup. */
 	private long lastCleanup = 0;
 
-    public DisplayLayerHls(URI uri, DisplayLayerResources res) {
+	/**
+	 * @param uri The URI of the media playlist.
+	 * @param variants The variants that can be played instead, see {@link AdaptiveBitrate}.
+	 *                 Only the variants from the one of the given URI are used, if present.
+	 * @param res The shared resources.
+	 */
+    public DisplayLayerHls(URI uri, List<PlaylistQuality> variants, DisplayLayerResources res) {
 
 		super(uri, res);
 		
+		int variantIndex = -1;
+		for (int i = 0; i < variants.size(); ++i) {
+			if (variants.get(i).uri().equals(uri)) {
+				variantIndex = i;
+				break;
+			}
+		}
+		
+		if (variantIndex >= 0 && variantIndex < variants.size() - 1) {
+			this.bitrate = new AdaptiveBitrate(variants.subList(variantIndex, variants.size()));
+		} else {
+			this.bitrate = null;
+		}
+		
+		this.playlistUri = uri;
+		
         this.hlsParser = new MediaPlaylistParser(ParsingMode.LENIENT);
 		this.profiler = new ProfilerSystem(System::nanoTime, () -> 0, true);
 		// this.profiler = DummyProfiler.INSTANCE;
   
-		this.asyncPlaylist = new AsyncProcessor<>(this::requestPlaylistBlocking, true);
-		this.asyncGrabbers = new AsyncMap<>(this::requestGrabberBlocking, grabber -> {
-			WebStreamerMod.LOGGER.info(makeLog("Stopping requested but unused grabber."));
-			grabber.stop();
-		}, GRABBER_REQUEST_TIMEOUT);
-        
-        this.audioSource = new AudioStreamingSource();
+		this.asyncPlaylist = AsyncProcessor.ofAsync(this::requestPlaylistAsync, res.getCompletionQueue(), true);
+		this.asyncSegments = AsyncMap.ofAsync(this::requestSegmentAsync, res.getCompletionQueue(), segment -> {
+			WebStreamerMod.LOGGER.info(makeLog("Releasing requested but unused segment."));
+			segment.input.release();
+		}, SEGMENT_REQUEST_TIMEOUT);
+        this.audioSource = new AudioStreamingSource(res.getAudioSourcePool());
+		this.decoder = new FrameDecoder(String.format("%08X", uri.hashCode()), res);
 
 		this.resetPlaylist();
 
@@ -115,7 +192,11 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 	@Override
 	public boolean cleanup(long now) {
 		if (super.cleanup(now)) {
-			this.asyncGrabbers.cleanup(this.res.getExecutor());
+			if (this.asyncPlaylist.cancel()) {
+				this.res.recordCancelled(DisplayLayerResources.CancelledTask.PLAYLIST_REQUEST);
+			}
+			this.asyncSegments.cleanup(this.res.getCleanupLane());
+			this.decoder.free();
 			this.audioSource.free();
 			return true;
 		} else {
@@ -130,7 +211,7 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 
 	// Audio //
 
-	private void resetAudioSource() {
+	private void resetAudioSource(long now) {
 		if (this.nearestAudioPos != null) {
 			this.audioSource.setPosition(this.nearestAudioPos);
 			this.audioSource.setAttenuation(this.nearestAudioDistance);
@@ -138,14 +219,57 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 		} else {
 			this.audioSource.stop();
 		}
+		this.updateAudioActive(now);
+		this.requestAudioSource();
 		this.nearestAudioPos = null;
 		this.nearestAudioDist = Float.MAX_VALUE;
 		this.nearestAudioDistance = 0f;
 		this.nearestAudioVolume = 0f;
 	}
 
+	/**
+	 * Update whether audio is decoded, depending on the nearest display pushed. Audio
+	 * stops being decoded once no display can be heard for some time, and is decoded
+	 * again as soon as one can be heard.
+	 * @param now The current time in nanoseconds (monotonic).
+	 */
+	private void updateAudioActive(long now) {
+		boolean inRange = this.nearestAudioPos != null
+				&& this.nearestAudioVolume > 0f
+				&& this.nearestAudioDist <= this.nearestAudioDistance + AUDIO_ACTIVE_MARGIN;
+		if (inRange) {
+			this.audioInRangeTimestamp = now;
+			// Layers of displays that are heard but not visible are kept for their audio.
+			this.lastUse = now;
+			if (!this.audioActive) {
+				this.audioActive = true;
+				this.decoder.setAudioActive(true);
+			}
+		} else if (this.audioActive && now - this.audioInRangeTimestamp >= AUDIO_INACTIVE_DELAY) {
+			this.audioActive = false;
+			this.decoder.setAudioActive(false);
+			this.audioSource.stop();
+		}
+	}
+
+	/**
+	 * Request an audio source to the shared pool if the nearest display can be heard,
+	 * with the gain at the listener position as priority, the source is reclaimed by the
+	 * pool when not requested.
+	 */
+	private void requestAudioSource() {
+		if (this.audioActive && this.nearestAudioPos != null && this.nearestAudioDistance > 0f) {
+			// Same linear model as the source's attenuation.
+			float gain = this.nearestAudioVolume * (1f - this.nearestAudioDist / this.nearestAudioDistance);
+			if (gain > 0f) {
+				this.audioSource.request(gain);
+			}
+		}
+	}
+
 	@Override
 	public void pushAudioSource(Vec3i pos, float dist, float audioDistance, float audioVolume) {
+		this.pushTaskPriority(dist, false);
 		if (dist < this.nearestAudioDist) {
 			this.nearestAudioPos = pos;
 			this.nearestAudioDist = dist;
@@ -179,21 +303,35 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 	    return this.playlistSegments == null ? 0 : this.playlistSegments.size() - 1 + this.playlistOffset;
     }
  
-	/** Internal blocking method to request the playlist. */
-    private MediaPlaylist requestPlaylistBlocking(URI uri) throws IOException {
-		try {
-			HttpRequest request = HttpRequest.newBuilder(uri).GET().timeout(Duration.ofSeconds(5)).build();
-			HttpResponse<Stream<String>> res = this.res.getHttpClient()
-					.send(request, HttpResponse.BodyHandlers.ofLines());
-			if (res.statusCode() == 200) {
-				return this.hlsParser.readPlaylist(res.body().iterator());
-			} else {
-				throw new IOException("HTTP request failed, status code: " + res.statusCode());
+	/**
+	 * Internal method to request the playlist, parsed on completion by the HTTP client,
+	 * cancelling the returned future aborts the HTTP exchange.
+	 */
+	private CompletableFuture<MediaPlaylist> requestPlaylistAsync(URI uri) {
+		HttpRequest request = HttpRequest.newBuilder(uri).GET().timeout(Duration.ofSeconds(5)).build();
+		CompletableFuture<HttpResponse<String>> exchange = this.res.getHttpClient().sendAsync(request, HttpResponse.BodyHandlers.ofString());
+		CompletableFuture<MediaPlaylist> playlist = exchange.thenApply(res -> {
+			try {
+				return this.readPlaylist(res);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		});
+		playlist.whenComplete((ignored, e) -> {
+			if (playlist.isCancelled()) {
+				exchange.cancel(true);
 			}
-		} catch (InterruptedException e) {
-			throw new IOException(e);
+		});
+		return playlist;
+	}
+
+	private MediaPlaylist readPlaylist(HttpResponse<String> res) throws IOException {
+		if (res.statusCode() == 200) {
+			return this.hlsParser.readPlaylist(res.body());
+		} else {
+			throw new IOException("HTTP request failed, status code: " + res.statusCode());
 		}
-    }
+	}
 
 	private void resetPlaylist() {
 		this.playlistSegments = null;
@@ -204,19 +342,25 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 	/** Request the playlist if not already requesting and if this request is not pointless. */
 	private void requestPlaylist(long now) {
 		if (now >= this.playlistNextRequestTimestamp) {
-			this.asyncPlaylist.push(this.uri);
+			this.asyncPlaylist.push(this.playlistUri);
 			this.playlistNextRequestTimestamp = now + this.playlistRequestInterval;
 		}
 	}
 
 	private void fetchPlaylist() {
 		this.profiler.push("fetch_playlist");
-		this.asyncPlaylist.fetch(this.res.getExecutor(), playlist -> {
+		this.asyncPlaylist.fetch(this.res.getNetworkLane(), (uri, playlist) -> {
+			if (!uri.equals(this.playlistUri)) {
+				// Playlist of a variant that we switched from while requesting.
+				return;
+			}
 			this.profiler.push("success");
 			this.playlistConsecutiveFailedRequest = 0;
 			int newOffset = (int) playlist.mediaSequence();
-			if (newOffset > this.playlistOffset) {
+			// Variants share media sequence numbers, so a new variant replaces the segments.
+			if (newOffset > this.playlistOffset || !uri.equals(this.playlistSegmentsUri)) {
 				this.playlistSegments = playlist.mediaSegments();
+				this.playlistSegmentsUri = uri;
 				this.playlistOffset = (int) playlist.mediaSequence();
 				if (!this.playlistSegments.isEmpty()) {
 					MediaSegment lastSegment = this.playlistSegments.get(this.playlistSegments.size() - 1);
@@ -229,7 +373,7 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 				}
 			}
 			this.profiler.pop();
-		}, e -> {
+		}, (uri, e) -> {
 			// If failing, put timestamp to retry later.
 			this.playlistRequestInterval = FAILING_PLAYLIST_REQUEST_INTERVAL;
 			this.playlistConsecutiveFailedRequest++;
@@ -238,63 +382,221 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 		this.profiler.pop();
 	}
 	
-	// Grabber //
+	// Decoder //
 
-	private FrameGrabber requestGrabberBlocking(URI uri) throws IOException {
-		FrameGrabber grabber = new FrameGrabber(this.res, uri);
-		grabber.start();
-		return grabber;
+	/**
+	 * Internal method to request a segment, cancelling the returned future cancels the
+	 * segment request, or releases its input if already completed.
+	 */
+	private CompletableFuture<RequestedSegment> requestSegmentAsync(SegmentRequest request) {
+		CompletableFuture<SegmentInput> input = this.res.getSegmentCache().requestAsync(request.uri, STREAMING_SEGMENTS, this.res.getNetworkLane().withPriority(this.taskPriority));
+		CompletableFuture<RequestedSegment> segment = input.thenApply(in -> {
+			if (!in.isCached()) {
+				in.getData().getCompletion().thenAccept(data -> {
+					if (this.bitrate != null) {
+						this.bitrate.pushDownload(data.getSize(), data.getDownloadTime());
+					}
+					// The prefetch window is only used from the render thread.
+					this.res.getCompletionQueue().post(() -> this.prefetch.pushDownload(data.getDownloadTime(), request.duration));
+				});
+			}
+			return new RequestedSegment(request.playlistUri, in);
+		});
+		segment.whenComplete((ignored, e) -> {
+			if (segment.isCancelled() && !input.cancel(false)) {
+				input.thenAccept(SegmentInput::release);
+			}
+		});
+		return segment;
 	}
 
     /**
-     * Request a grabber at specific index.
-     * @param index The segment index of the grabber.
+     * Request a segment at specific index.
+     * @param index The segment index.
      */
-	private void requestGrabber(int index) {
+	private void requestSegment(int index) {
 		MediaSegment seg = this.getSegment(index);
 		if (seg != null) {
-			this.asyncGrabbers.push(this.res.getExecutor(), this.uri.resolve(seg.uri()), index);
+			URI segmentUri = this.playlistSegmentsUri.resolve(seg.uri());
+			this.asyncSegments.push(this.res.getNetworkLane(), new SegmentRequest(this.playlistSegmentsUri, segmentUri, seg.duration()), index);
 		}
 	}
 
 	/**
-	 * Try to pull the given grabber, requested if not already. <b>The current grabber must be null.</b>
-	 * @param index The segment index to pull.
+	 * Push segments to the decoder in segment order as soon as they are requested, the
+	 * current segment is requested if not already, the following ones within the prefetch
+	 * window are only pushed if their preloading is done, so the decoder can continue
+	 * decoding them without interruption.
 	 */
-	private void pullGrabberAndUse(int index) {
-		boolean requested = this.asyncGrabbers.pull(index, grabber -> {
-			this.grabber = grabber;
-		}, e -> WebStreamerMod.LOGGER.error(makeLog("Failed to create and start grabber."), e));
-		if (!requested) {
-			this.requestGrabber(index);
+	private void pushSegments() {
+		int window = this.prefetch.getWindow();
+		int pushedIndex;
+		do {
+			pushedIndex = this.decoderSegmentIndex;
+			if (pushedIndex < this.segmentIndex) {
+				this.pushSegment(this.segmentIndex);
+			} else if (pushedIndex < this.segmentIndex + window) {
+				this.pushSegment(pushedIndex + 1);
+			} else {
+				return;
+			}
+		} while (this.decoderSegmentIndex != pushedIndex);
+	}
+
+	/**
+	 * Push the segment at the given index to the decoder if its request is completed, the
+	 * current segment is requested if not already.
+	 */
+	private void pushSegment(int index) {
+		boolean requested = this.asyncSegments.pull(index, segment -> {
+			// A segment that doesn't directly follow the previous one, or that comes from
+			// another variant, must restart the decoder's stream.
+			MediaSegment seg = this.getSegment(index);
+			boolean discontinuity = index != this.decoderSegmentIndex + 1
+					|| !segment.playlistUri.equals(this.decoderPlaylistUri)
+					|| (seg != null && seg.discontinuity());
+			this.decoder.push(index, segment.input, discontinuity);
+			this.decoderSegmentIndex = index;
+			this.decoderPlaylistUri = segment.playlistUri;
+		}, e -> {
+			// Requests failing because of the raw file buffers budget would fail again at once.
+			this.segmentRetryTimestamp = System.nanoTime() + FAILING_SEGMENT_REQUEST_DELAY;
+			WebStreamerMod.LOGGER.error(makeLog("Failed to request segment."), e);
+		});
+		if (!requested && index == this.segmentIndex && System.nanoTime() - this.segmentRetryTimestamp >= 0) {
+			this.requestSegment(index);
 		}
 	}
 
-    /**
-     * Ensure that the current frame grabber get reset.
-     * @param toBeContinued True if a next grabber should directly follow the current one.
-     */
-	private void resetGrabber(boolean toBeContinued) {
-		if (this.grabber != null) {
-			if (toBeContinued) {
-				try {
-					this.grabber.grabRemaining(this.audioSource::queueBuffer);
-				} catch (IOException e) {
-					WebStreamerMod.LOGGER.error(makeLog("Failed to grab remaining from current grabber."), e);
-				}
-			} else {
-				this.audioSource.stop();
+	@Override
+	public void pushView(float dist, float screenSize, int pixelWidth, int pixelHeight) {
+		super.pushView(dist, screenSize, pixelWidth, pixelHeight);
+		FrameDecoder.Lod lod;
+		if (dist >= LOD_KEY_FRAMES_DISTANCE) {
+			lod = FrameDecoder.Lod.KEY_FRAMES;
+		} else if (screenSize >= LOD_FULL_SCREEN_SIZE) {
+			lod = FrameDecoder.Lod.FULL;
+		} else if (screenSize >= LOD_REDUCED_SCREEN_SIZE) {
+			lod = FrameDecoder.Lod.REDUCED;
+		} else {
+			lod = FrameDecoder.Lod.KEY_FRAMES;
+		}
+		if (lod.ordinal() < this.viewLod.ordinal()) {
+			this.viewLod = lod;
+		}
+		this.viewWidth = Math.max(this.viewWidth, roundTargetSize(pixelWidth));
+		this.viewHeight = Math.max(this.viewHeight, roundTargetSize(pixelHeight));
+	}
+
+	private static int roundTargetSize(int size) {
+		return (Math.max(size, 1) + TARGET_SIZE_ROUNDING - 1) / TARGET_SIZE_ROUNDING * TARGET_SIZE_ROUNDING;
+	}
+
+	/**
+	 * Apply the highest level of detail and largest target size pushed since the last
+	 * tick to the decoder, a higher level or larger size is applied immediately, but a
+	 * lower one only when pushed for some time.
+	 * @param now The current time in nanoseconds (monotonic).
+	 */
+	private void updateLod(long now) {
+		
+		if (this.viewWidth == 0 || this.viewHeight == 0) {
+			// Layers that are not viewed keep their target size for their poster.
+			this.viewWidth = this.targetWidth;
+			this.viewHeight = this.targetHeight;
+		}
+		
+		boolean up = this.viewLod.ordinal() < this.lod.ordinal()
+				|| this.viewWidth > this.targetWidth
+				|| this.viewHeight > this.targetHeight;
+		boolean changed = this.viewLod != this.lod
+				|| this.viewWidth != this.targetWidth
+				|| this.viewHeight != this.targetHeight;
+		
+		if (up) {
+			if (this.viewLod.ordinal() < this.lod.ordinal()) {
+				this.lod = this.viewLod;
+				this.decoder.setLod(this.lod);
+			}
+			this.targetWidth = Math.max(this.targetWidth, this.viewWidth);
+			this.targetHeight = Math.max(this.targetHeight, this.viewHeight);
+			this.decoder.setTargetSize(this.targetWidth, this.targetHeight);
+			this.lodDownTimestamp = now;
+		} else if (!changed) {
+			this.lodDownTimestamp = now;
+		} else if (now - this.lodDownTimestamp >= LOD_DOWN_DELAY) {
+			this.lod = this.viewLod;
+			this.targetWidth = this.viewWidth;
+			this.targetHeight = this.viewHeight;
+			this.decoder.setLod(this.lod);
+			this.decoder.setTargetSize(this.targetWidth, this.targetHeight);
+			this.lodDownTimestamp = now;
+		}
+		
+		this.viewLod = FrameDecoder.Lod.POSTER;
+		this.viewWidth = 0;
+		this.viewHeight = 0;
+		
+	}
+
+	/**
+	 * Start presenting a new epoch of the decoder, the playback timestamp is placed after
+	 * the start of the epoch by the time elapsed since the start of its segment.
+	 * @param start The start of the epoch.
+	 */
+	private void startEpoch(FrameDecoder.EpochStart start) {
+		double offset = this.segmentTimestamp;
+		for (int index = start.epochSegment(); index < this.segmentIndex; ++index) {
+			MediaSegment seg = this.getSegment(index);
+			if (seg != null) {
+				offset += seg.duration();
+			}
+		}
+		this.playbackEpoch = start.epoch();
+		this.playbackTimestamp = start.timestamp() + (long) (offset * 1000000);
+		// Timestamps of the new epoch are not related to previous ones.
+		this.audioSource.stop();
+	}
+
+	/**
+	 * Update the adaptive bitrate controller, if the variant is switched the new media
+	 * playlist is requested immediately, its segments will be used once received.
+	 * @param stalled True if the playback has stalled.
+	 */
+	private void updateVariant(boolean stalled) {
+		if (this.bitrate != null && this.bitrate.update(this.decoder.getDecodeLoad(), stalled)) {
+			PlaylistQuality variant = this.bitrate.getVariant();
+			WebStreamerMod.LOGGER.info(makeLog("Switching to variant {} ({} bps), throughput: {} bps, decode load: {}"),
+					variant.name(), variant.bandwidth(), (long) this.bitrate.getThroughput(), this.decoder.getDecodeLoad());
+			this.playlistUri = variant.uri();
+			this.playlistNextRequestTimestamp = 0;
+			// A pending request of the previous variant would be ignored.
+			if (this.asyncPlaylist.cancel()) {
+				this.res.recordCancelled(DisplayLayerResources.CancelledTask.PLAYLIST_REQUEST);
 			}
-			this.res.getExecutor().execute(this.grabber::stop);
-			this.grabber = null;
 		}
 	}
 
+	/**
+	 * Reset the decoder, discarding all pushed segments and decoded frames, and stop
+	 * the audio source.
+	 */
+	private void resetDecoder() {
+		this.decoder.reset();
+		this.decoderSegmentIndex = -1;
+		this.decoderPlaylistUri = null;
+		this.audioSource.stop();
+	}
+
     private void fetch() throws IOException {
 		
         long now = System.nanoTime();
-        double elapsedTime = ((double) (now - this.lastFetchTimestamp) / 1000000000.0);
+		// The playback may advance slightly faster or slower to follow the audio.
+		long elapsed = this.clock.advance((now - this.lastFetchTimestamp) / 1000) + this.playbackJump;
+		double elapsedTime = (double) elapsed / 1000000.0;
         this.lastFetchTimestamp = now;
+		this.playbackTimestamp += elapsed;
+		this.playbackJump = 0;
 
         // System.out.println("sound source playing: " + this.soundSource.isPlaying());
 		
@@ -308,16 +610,15 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 			
 			// Request a playlist reset.
 			boolean resetPlaylist = false;
-			// Request a grabber reset, usually used when switching segment.
-			boolean resetGrabber = false;
+			// Set when the current segment has changed.
+			boolean segmentBoundary = false;
 			
 			for (;;) {
 				
 				// If we are too slow and the current segment is now out of the playlist.
 				if (this.getCurrentSegment() == null) {
-					WebStreamerMod.LOGGER.warn(makeLog("No current segment, reset playlist and grabber"));
+					WebStreamerMod.LOGGER.warn(makeLog("No current segment, reset playlist and decoder"));
 					resetPlaylist = true;
-					resetGrabber = true;
 					break;
 				}
 				
@@ -328,16 +629,15 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 					MediaSegment seg = this.getCurrentSegment();
 					
 					if (seg == null) {
-						WebStreamerMod.LOGGER.warn(makeLog("No next segment, reset playlist and grabber"));
+						WebStreamerMod.LOGGER.warn(makeLog("No next segment, reset playlist and decoder"));
 						resetPlaylist = true;
-						resetGrabber = true;
 						break;
 					}
 					
-					resetGrabber = true;
 					remainingTime = this.segmentTimestamp - this.segmentDuration;
 					this.segmentDuration = seg.duration();
 					this.segmentTimestamp = 0;
+					segmentBoundary = true;
 					
 				} else {
 					break;
@@ -346,26 +646,37 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 			}
 			
 			if (resetPlaylist) {
+				// Resets are stalls, a lower variant is played after them, if any.
+				this.prefetch.pushStall();
+				this.updateVariant(true);
 				this.resetPlaylist();
-				this.resetGrabber(false);
+				this.resetDecoder();
 			} else {
 				
-				if (resetGrabber) {
-					// We only want to continue if the sound source is currently playing,
-					// not playing means we are desynchronized.
-					this.resetGrabber(true);
+				// Segment transitions need no work here, the decoder thread reads
+				// segments as a continuous stream, but the variant can be switched.
+				if (segmentBoundary) {
+					this.updateVariant(false);
+				}
+				
+				if (segmentBoundary) {
+					// The decoder would wait for the current segment if not yet pushed.
+					this.prefetch.pushSegment(this.decoderSegmentIndex < this.segmentIndex);
 				}
 				
 				int offsetFromLastSegment = this.getLastSegmentIndex() - this.segmentIndex;
 				
-				if (offsetFromLastSegment <= 1) {
-					// We are at most 1 segment from the end, so request a new playlist.
+				if (offsetFromLastSegment <= 1 || !this.playlistUri.equals(this.playlistSegmentsUri)) {
+					// We are at most 1 segment from the end, or the variant has been
+					// switched, so request a new playlist.
 					this.requestPlaylist(now);
 				}
 				
-				if (offsetFromLastSegment >= 1) {
-					// If we have at least one segment after the current one, preload it.
-					this.requestGrabber(this.segmentIndex + 1);
+				// Preload the segments after the current one within the prefetch window,
+				// except those already pushed to the decoder.
+				int lastIndex = this.segmentIndex + Math.min(this.prefetch.getWindow(), offsetFromLastSegment);
+				for (int index = Math.max(this.segmentIndex, this.decoderSegmentIndex) + 1; index <= lastIndex; ++index) {
+					this.requestSegment(index);
 				}
 				
 			}
@@ -429,38 +740,85 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 	
         }
 		
-		// Grabbing and uploading section...
-  
-		// If the grabber is in reset state, try to get it.
-        if (this.grabber == null) {
-			this.pullGrabberAndUse(this.segmentIndex);
-			if (this.grabber == null) {
-				// Abort if not ready to use.
-				return;
-			}
-        }
-
-		long segmentTimestampMicros = (long) (this.segmentTimestamp * 1000000);
-
-        this.profiler.push("grab_frame");
-		Frame frame = this.grabber.grabAt(segmentTimestampMicros, this.audioSource::queueBuffer);
+		// Decoding and uploading section...
+		
+		this.profiler.push("push_segments");
+		this.pushSegments();
+		
+		this.profiler.swap("poll_frame");
+		// Epochs may start without any frame if video is not decoded, see pushView.
+		FrameDecoder.EpochStart nextEpoch = this.decoder.peekEpoch(this.playbackEpoch);
+		if (nextEpoch != null && nextEpoch.epochSegment() <= this.segmentIndex) {
+			// Previous epoch is fully presented and the next one has been reached.
+			this.startEpoch(nextEpoch);
+		}
+		
+		this.decoder.setPlayback(this.playbackEpoch, this.playbackTimestamp);
+		FrameDecoder.DecodedFrame frame = this.decoder.pollFrame(this.playbackEpoch, this.playbackTimestamp);
+		
+		this.profiler.swap("poll_audio");
+		if (this.audioActive) {
+			this.decoder.pollAudio(this.playbackEpoch, this.audioSource::queueBuffer);
+		} else {
+			// Buffers decoded before audio became inactive.
+			this.decoder.pollAudio(this.playbackEpoch, AudioStreamingBuffer::free);
+		}
 		this.profiler.pop();
 		
 		if (frame != null) {
 			this.profiler.push("upload_image");
 			this.tex.upload(frame);
-			this.profiler.swap("play_audio");
-			this.audioSource.playFrom(frame.timestamp);
+			this.decoder.release(frame);
+			this.profiler.pop();
+		}
+		
+		if (this.playbackEpoch != 0) {
+			// Audio is played from the playback clock, frames may be rare or absent.
+			this.profiler.push("play_audio");
+			this.audioSource.playFrom(this.playbackTimestamp);
+			this.syncClock();
 			this.profiler.pop();
 		}
 		
     }
+
+	/**
+	 * Synchronize the playback clock with the position of the audio being played, if any.
+	 * Drifts too large to be corrected by the clock are corrected by jumping forward the
+	 * playback if the audio is ahead, or by restarting the audio if it's behind.
+	 */
+	private void syncClock() {
+		long audioTimestamp = this.audioActive ? this.audioSource.getPlaybackTimestamp() : -1L;
+		long drift = this.clock.sync(this.playbackTimestamp, audioTimestamp);
+		if (drift > 0) {
+			WebStreamerMod.LOGGER.debug(makeLog("Audio is {} us ahead, jumping forward."), drift);
+			this.playbackJump = drift;
+		} else if (drift < 0) {
+			WebStreamerMod.LOGGER.debug(makeLog("Audio is {} us behind, restarting audio."), -drift);
+			this.audioSource.stop();
+		}
+	}
+
+	/**
+	 * @return A snapshot of the synchronization of the playback with the audio.
+	 */
+	public PlaybackClock.PlaybackClockStats getClockStats() {
+		return this.clock.getStats();
+	}
+	
+	/**
+	 * @return A snapshot of the prefetch window and of the playback stalls.
+	 */
+	public SegmentPrefetch.SegmentPrefetchStats getPrefetchStats() {
+		return this.prefetch.getStats();
+	}
 	
 	@Override
     public void tick() {
 
         this.profiler.startTick();
         this.profiler.push("tick");
+		this.updateTaskPriority();
 		
 		if (!this.isLost()) {
 			// Only fetch if this layer is not lost, because if it's lost, it should be
@@ -476,10 +834,12 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 		}
 
 		long now = System.nanoTime();
+		this.updateLod(now);
+		
 		boolean cleanup = now - this.lastCleanup >= CLEANUP_INTERVAL;
 		if (cleanup) {
 			this.profiler.push("cleanup");
-			this.asyncGrabbers.cleanupTimedOut(this.res.getExecutor(), now);
+			this.asyncSegments.cleanupTimedOut(this.res.getCleanupLane(), now);
 			this.lastCleanup = now;
 			this.profiler.pop();
 		}
@@ -487,7 +847,7 @@ public class DisplayLayerHls extends DisplayLayerSimple {
         this.profiler.pop();
 		this.profiler.endTick();
 		
-		this.resetAudioSource();
+		this.resetAudioSource(now);
 		
         /*if (cleanup) {
 	        ProfileResult res = this.profiler.getResult();
@@ -542,4 +902,10 @@ public class DisplayLayerHls extends DisplayLayerSimple {
 //		return now - this.inner.lastUse >= LAYER_UNUSED_TIMEOUT;
 //	}
 
+	/** A request for a segment from a media playlist, with its duration in seconds. */
+	private record SegmentRequest(URI playlistUri, URI uri, double duration) { }
+
+	/** A requested segment input with the URI of the media playlist it comes from. */
+	private record RequestedSegment(URI playlistUri, SegmentInput input) { }
+
 }
@@ -10,6 +10,7 @@ import org.lwjgl.stb.STBImage;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -19,8 +20,8 @@ import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.time.Duration;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Environment(EnvType.CLIENT)
 public class DisplayLayerImage extends DisplayLayerSimple {
@@ -29,12 +30,25 @@ public class DisplayLayerImage extends DisplayLayerSimple {
 	
 	private long imageNextRequestTimestamp = 0;
 	private boolean imageUploaded = false;
-	private Future<STBLoadedImage> futureImage;
+	/** True while the image is requested, until its completion is delivered. */
+	private boolean imageRequested = false;
+	/** True once cleaned up, an image delivered after is only freed. */
+	private boolean freed = false;
 	
 	public DisplayLayerImage(URI uri, DisplayLayerResources res) {
 		super(uri, res);
 	}
 
+	@Override
+	public boolean cleanup(long now) {
+		if (super.cleanup(now)) {
+			this.freed = true;
+			return true;
+		} else {
+			return false;
+		}
+	}
+
 	@Override
 	public int cost() {
 		return 1;  // Static images always have a cost of 1.
@@ -44,46 +58,68 @@ public class DisplayLayerImage extends DisplayLayerSimple {
 	public void tick() {
 		
 		long now = System.nanoTime();
+		this.updateTaskPriority();
+		
+		if (!this.imageRequested && !this.imageUploaded && now >= this.imageNextRequestTimestamp) {
+			this.imageRequested = true;
+			this.res.getCompletionQueue().deliver(this.requestImage(), this::onImageLoaded);
+		}
 		
-		if (this.futureImage == null) {
-			if (!this.imageUploaded && now >= this.imageNextRequestTimestamp) {
-				this.futureImage = this.res.getExecutor().submit(this::requestImageBlocking);
+	}
+	
+	/**
+	 * Called from the render thread when the image request completes.
+	 */
+	private void onImageLoaded(STBLoadedImage img, Throwable error) {
+		
+		this.imageRequested = false;
+		
+		if (error != null) {
+			if (!(error instanceof CancellationException)) {
+				WebStreamerMod.LOGGER.error(makeLog("Failed to request image, retrying in {} seconds."), FAILING_IMAGE_REQUEST_INTERVAL / 1000000000, error);
+				this.imageNextRequestTimestamp = System.nanoTime() + FAILING_IMAGE_REQUEST_INTERVAL;
 			}
-		} else if (this.futureImage.isDone()) {
-			
-			STBLoadedImage img = null;
-			
-			try {
-				
-				img = this.futureImage.get();
-				
+			return;
+		}
+		
+		try {
+			if (!this.freed) {
 				WebStreamerMod.LOGGER.info(makeLog("Uploading image... (channels: {}, pixel size: {})"), img.channels, img.buffer.remaining() / (img.width * img.height));
-				
 				this.tex.uploadRaw(img.buffer, GL11.GL_RGBA, img.width, img.height, img.width, GL11.GL_RGBA, 4);
 				this.imageUploaded = true;
-				
-			} catch (InterruptedException | CancellationException e) {
-				// Should not happen
-			} catch (ExecutionException e) {
-				WebStreamerMod.LOGGER.error(makeLog("Failed to request image, retrying in {} seconds."), FAILING_IMAGE_REQUEST_INTERVAL / 1000000000, e.getCause());
-				this.imageNextRequestTimestamp = now + FAILING_IMAGE_REQUEST_INTERVAL;
-			} finally {
-				this.futureImage = null;
-				if (img != null) {
-					img.free();
-				}
 			}
-			
+		} finally {
+			img.free();
 		}
 		
 	}
 
-	protected STBLoadedImage requestImageBlocking() throws IOException {
+	/**
+	 * Request the image on the network lane, and then decode it on the decode lane.
+	 */
+	private CompletableFuture<STBLoadedImage> requestImage() {
+		int priority = this.taskPriority;
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return this.requestImageBlocking();
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, this.res.getNetworkLane().withPriority(priority)).thenApplyAsync(data -> {
+			try {
+				return this.readImageBlocking(new ByteArrayInputStream(data));
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, this.res.getDecodeLane().withPriority(priority));
+	}
+
+	protected byte[] requestImageBlocking() throws IOException {
 		try {
 			HttpRequest request = HttpRequest.newBuilder(this.uri).GET().timeout(Duration.ofSeconds(5)).build();
-			HttpResponse<InputStream> res = this.res.getHttpClient().send(request, HttpResponse.BodyHandlers.ofInputStream());
+			HttpResponse<byte[]> res = this.res.getHttpClient().send(request, HttpResponse.BodyHandlers.ofByteArray());
 			if (res.statusCode() == 200) {
-				return this.readImageBlocking(res.body());
+				return res.body();
 			} else {
 				throw new IOException("HTTP request failed, status code: " + res.statusCode());
 			}
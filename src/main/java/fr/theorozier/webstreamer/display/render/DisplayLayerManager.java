@@ -33,8 +33,14 @@ public class DisplayLayerManager extends DisplayLayerMap<URI> {
     public void tick() {
 
         RenderSystem.assertOnRenderThread();
+
+        // Completed tasks are delivered before ticking layers, so they can use them.
+        this.res.getCompletionQueue().drain();
         super.tick();
 
+        // Layers have requested their audio sources while ticking.
+        this.res.getAudioSourcePool().update();
+
         long now = System.nanoTime();
         if (now - this.lastCleanup >= CLEANUP_INTERVAL) {
             super.cleanup(now); // Super to avoid redundant render thread check.
@@ -46,7 +52,12 @@ public class DisplayLayerManager extends DisplayLayerMap<URI> {
     @Override
     public boolean cleanup(long now) {
         RenderSystem.assertOnRenderThread();
-        return super.cleanup(now);
+        boolean cleaned = super.cleanup(now);
+        if (now == 0) {
+            // All layers have released their audio sources.
+            this.res.getAudioSourcePool().free();
+        }
+        return cleaned;
     }
 
     @Override
@@ -66,7 +77,8 @@ public class DisplayLayerManager extends DisplayLayerMap<URI> {
         String path = key.uri().getPath();
         if (path != null) {
             if (path.endsWith(".m3u8")) {
-                return new DisplayLayerHls(key.uri(), this.res);
+                DisplayRenderData renderData = (DisplayRenderData) key.display().getRenderData();
+                return new DisplayLayerHls(key.uri(), renderData.getVariants(), this.res);
             } else if (path.endsWith(".jpeg") || path.endsWith(".jpg") || path.endsWith(".bmp") || path.endsWith(".png")) {
                 return new DisplayLayerImage(key.uri(), this.res);
             } else if (path.endsWith(".svg")) {
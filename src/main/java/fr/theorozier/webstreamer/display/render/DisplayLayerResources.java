@@ -1,83 +1,307 @@
 package fr.theorozier.webstreamer.display.render;
 
 import fr.theorozier.webstreamer.WebStreamerMod;
+import fr.theorozier.webstreamer.display.audio.AudioSourcePool;
+import fr.theorozier.webstreamer.util.CompletionQueue;
+import fr.theorozier.webstreamer.util.TaskLane;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
-import org.jetbrains.annotations.NotNull;
+import org.lwjgl.system.MemoryUtil;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.http.HttpClient;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Different pool types given to {@link DisplayLayerHls} as a centralized way of getting
- * access to heavy heap buffers. This also provides a thread pool executor and an HTTP
- * client in order to reduce overhead when creating them.
+ * access to heavy heap buffers. This also provides task lanes, an HTTP client and a
+ * segment cache in order to reduce overhead when creating them, and the pool of audio
+ * sources shared by all layers.
+ * <p>Tasks are executed on separate lanes depending on their kind, so that slow network
+ * requests don't delay CPU work and inversely, within a lane tasks of visible and near
+ * displays run first, see {@link #getTaskPriority}.</p>
+ * <p>Completions of tasks are delivered to the render thread through a single queue,
+ * drained once per frame by the {@link DisplayLayerManager}.</p>
  */
 @Environment(EnvType.CLIENT)
 public class DisplayLayerResources {
 	
-	/** 8 Mio buffer for pre-storing whole TransportStream file. */
-	private static final int RAW_FILE_BUFFER_SIZE = 1 << 23;
-	/** Limit to 256 Mio of raw file buffers. */
-	private static final int RAW_FILE_BUFFER_LIMIT = 32;
-	/** 8 Kio buffer for converting (16 or 8 bits) stereo to mono 16 bits audio stream. */
-	private static final int AUDIO_BUFFER_SIZE = 8192;
-	/** Limit to 512 Kio of audio buffers. */
+	/** Smallest size class of raw file buffers for storing whole TransportStream file, 256 Kio. */
+	private static final int RAW_FILE_BUFFER_MIN_SHIFT = 18;
+	/** Largest size class of raw file buffers, 32 Mio. */
+	private static final int RAW_FILE_BUFFER_MAX_SHIFT = 25;
+	/** Limit to 256 Mio of allocated raw file buffers, used or not. */
+	private static final long RAW_FILE_BUFFER_BUDGET = 256L << 20;
+	/** Maximum time in nanoseconds to wait for the budget when allocating a raw file buffer. */
+	private static final long RAW_FILE_BUFFER_WAIT_TIMEOUT = 5L * 1000000000L;
+	/** 64 Kio buffer for converting (16 or 8 bits) stereo to mono 16 bits audio stream, and
+	 * aggregating up to 300 ms of 48 kHz mono samples. */
+	private static final int AUDIO_BUFFER_SIZE = 65536;
+	/** Limit to 4 Mio of audio buffers. */
 	private static final int AUDIO_BUFFER_LIMIT = 64;
+	/** Distance in blocks above which all displays have the same task priority. */
+	private static final int TASK_PRIORITY_MAX_DISTANCE = 1024;
+	/** Run blocking network requests on virtual threads when the runtime supports them,
+	 * can be disabled with the {@code webstreamer.virtualThreads} system property. */
+	private static final boolean VIRTUAL_NETWORK_THREADS = Boolean.parseBoolean(System.getProperty("webstreamer.virtualThreads", "true"));
 	
-	private final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
-		private final AtomicInteger counter = new AtomicInteger();
-		@Override
-		public Thread newThread(@NotNull Runnable r) {
-			return new Thread(r, "WebStreamer Display Queue (" + this.counter.getAndIncrement() + ")");
-		}
-	});
+	/** Lane for blocking network requests, and waits for buffers, mostly idle threads,
+	 * on virtual threads if supported. */
+	private final TaskLane networkLane = new TaskLane("Network", 4, VIRTUAL_NETWORK_THREADS);
+	/** Lane for CPU work such as decoding images, sized on the available processors. */
+	private final TaskLane decodeLane = new TaskLane("Decode", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+	/** Lane for releasing results of abandoned tasks. */
+	private final TaskLane cleanupLane = new TaskLane("Cleanup", 1);
+	/** Queue of completions, drained on the render thread. */
+	private final CompletionQueue completionQueue = new CompletionQueue();
 	
 	private final HttpClient httpClient = HttpClient.newHttpClient();
-	private final List<ByteBuffer> rawFileBuffers = new ArrayList<>();
+	private final SegmentCache segmentCache = new SegmentCache(this);
+	private final AudioSourcePool audioSourcePool = new AudioSourcePool();
+	/** Unused raw file buffers for each size class. */
+	@SuppressWarnings("unchecked")
+	private final ArrayDeque<ByteBuffer>[] rawFileBuffers = new ArrayDeque[RAW_FILE_BUFFER_MAX_SHIFT - RAW_FILE_BUFFER_MIN_SHIFT + 1];
+	/** Lock of raw file buffers, not a monitor so that waiting virtual threads don't pin
+	 * their carrier thread. */
+	private final ReentrantLock rawFileLock = new ReentrantLock();
+	private final Condition rawFileFreed = this.rawFileLock.newCondition();
 	private final List<ShortBuffer> audioBuffers = new ArrayList<>();
 	
-	private int rawFileBuffersCount = 0;
+	/** Total bytes of allocated raw file buffers, used or not. */
+	private long rawFileBytesAllocated = 0;
+	/** Total bytes of raw file buffers currently used. */
+	private long rawFileBytesUsed = 0;
+	/** Number of threads currently waiting for the raw file buffers budget. */
+	private int rawFileWaitingCount = 0;
+	/** Number of raw file buffer allocations that failed. */
+	private long rawFileFailedCount = 0;
 	private int audioBuffersCount = 0;
+	/** Number of cancelled tasks since startup, for each kind of task. */
+	private final AtomicLongArray cancelledCounts = new AtomicLongArray(CancelledTask.values().length);
+	
+	public DisplayLayerResources() {
+		for (int i = 0; i < this.rawFileBuffers.length; ++i) {
+			this.rawFileBuffers[i] = new ArrayDeque<>();
+		}
+		WebStreamerMod.LOGGER.info("Network tasks run on {} threads.", this.networkLane.isVirtual() ? "virtual" : "platform");
+	}
+	
+	public TaskLane getNetworkLane() {
+		return this.networkLane;
+	}
+	
+	public TaskLane getDecodeLane() {
+		return this.decodeLane;
+	}
 	
-	public ExecutorService getExecutor() {
-		return this.executor;
+	public TaskLane getCleanupLane() {
+		return this.cleanupLane;
+	}
+	
+	/**
+	 * @return Snapshots of the activity of each task lane.
+	 */
+	public List<TaskLane.TaskLaneStats> getTaskLaneStats() {
+		return List.of(this.networkLane.getStats(), this.decodeLane.getStats(), this.cleanupLane.getStats());
+	}
+	
+	/**
+	 * Compute the priority of tasks submitted for a display, visible displays come first,
+	 * then the nearest ones.
+	 * @param dist The distance between the camera and the display.
+	 * @param visible True if the display is visible.
+	 * @return The priority, lower values run first, see {@link TaskLane}.
+	 */
+	public static int getTaskPriority(float dist, boolean visible) {
+		int priority = (int) Math.max(0f, Math.min(dist, TASK_PRIORITY_MAX_DISTANCE));
+		return visible ? priority : priority + TASK_PRIORITY_MAX_DISTANCE + 1;
+	}
+	
+	/**
+	 * @return The queue of task completions, drained once per frame on the render thread,
+	 * callbacks posted to it are run on the render thread.
+	 */
+	public CompletionQueue getCompletionQueue() {
+		return this.completionQueue;
 	}
 	
 	public HttpClient getHttpClient() {
 		return this.httpClient;
 	}
 	
+	public SegmentCache getSegmentCache() {
+		return this.segmentCache;
+	}
+	
 	/**
-	 * Allocate an image buffer. Such buffers are backed by arrays to allow to
-	 * create a {@link java.io.ByteArrayInputStream} from it.
+	 * @return The pool of audio sources, only used from the render thread.
 	 */
-	public ByteBuffer allocRawFileBuffer() {
-		synchronized (this.rawFileBuffers) {
+	public AudioSourcePool getAudioSourcePool() {
+		return this.audioSourcePool;
+	}
+	
+	/**
+	 * Allocate a raw file buffer. Such buffers are backed by native memory in order
+	 * to be directly read by FFmpeg, see {@link SegmentInput}. The capacity of the
+	 * buffer is rounded up to the next size class, a power of two.
+	 * <p>When waiting, cached segments that are not read are released from the
+	 * {@link SegmentCache} to make room in the budget, so this must not be called
+	 * with the lock of a {@link SegmentData} held.</p>
+	 * 
+	 * @param minSize The minimum capacity of the buffer.
+	 * @param wait True to wait for the budget to be available, up to a timeout, if
+	 *             false the allocation fails immediately when the budget is exceeded.
+	 * @throws IOException If the size is larger than the largest size class or if
+	 * the budget is not available.
+	 */
+	public ByteBuffer allocRawFileBuffer(int minSize, boolean wait) throws IOException {
+		
+		int shift = getRawFileBufferShift(minSize);
+		int capacity = 1 << shift;
+		long deadline = System.nanoTime() + RAW_FILE_BUFFER_WAIT_TIMEOUT;
+		boolean reclaim = wait;
+		
+		for (;;) {
+			
+			this.rawFileLock.lock();
 			try {
-				return this.rawFileBuffers.remove(this.rawFileBuffers.size() - 1);
-			} catch (IndexOutOfBoundsException e) {
-				if (this.rawFileBuffersCount >= RAW_FILE_BUFFER_LIMIT) {
-					throw new IllegalStateException("reached maximum number of allocated raw file buffers: " + RAW_FILE_BUFFER_LIMIT);
+				
+				ByteBuffer buffer = this.pollRawFileBuffer(shift);
+				if (buffer != null) {
+					return buffer;
+				}
+				
+				long remaining = deadline - System.nanoTime();
+				if (!wait || remaining <= 0) {
+					this.rawFileFailedCount++;
+					throw new IOException("no raw file buffer budget available for " + capacity + " bytes");
+				}
+				
+				if (!reclaim) {
+					this.rawFileWaitingCount++;
+					try {
+						this.rawFileFreed.awaitNanos(remaining);
+					} catch (InterruptedException e) {
+						this.rawFileFailedCount++;
+						throw new InterruptedIOException();
+					} finally {
+						this.rawFileWaitingCount--;
+					}
+					// Cached segments may no longer be read since the last reclaim.
+					reclaim = true;
+					continue;
+				}
+				
+			} finally {
+				this.rawFileLock.unlock();
+			}
+			
+			// Released outside the lock, released buffers are given back to the pool.
+			reclaim = false;
+			this.segmentCache.reclaim(capacity);
+			
+		}
+		
+	}
+	
+	/**
+	 * Try to allocate a raw file buffer without waiting and without releasing cached
+	 * segments, this can be called with the lock of a {@link SegmentData} held.
+	 * @param minSize The minimum capacity of the buffer.
+	 * @return The buffer, or null if the budget is not immediately available, the
+	 * allocation should then be retried with {@link #allocRawFileBuffer} on a thread
+	 * allowed to wait.
+	 * @throws IOException If the size is larger than the largest size class.
+	 */
+	public ByteBuffer tryAllocRawFileBuffer(int minSize) throws IOException {
+		int shift = getRawFileBufferShift(minSize);
+		this.rawFileLock.lock();
+		try {
+			return this.pollRawFileBuffer(shift);
+		} finally {
+			this.rawFileLock.unlock();
+		}
+	}
+	
+	private static int getRawFileBufferShift(int minSize) throws IOException {
+		int shift = Math.max(RAW_FILE_BUFFER_MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(minSize - 1));
+		if (shift > RAW_FILE_BUFFER_MAX_SHIFT) {
+			throw new IOException("raw file buffer of " + minSize + " bytes is larger than the largest size class");
+		}
+		return shift;
+	}
+	
+	/**
+	 * Take an unused raw file buffer of the given size class, or allocate it if the
+	 * budget allows it. The lock must be held.
+	 * @return The buffer, or null if the budget is exceeded.
+	 */
+	private ByteBuffer pollRawFileBuffer(int shift) {
+		int capacity = 1 << shift;
+		ByteBuffer buffer = this.rawFileBuffers[shift - RAW_FILE_BUFFER_MIN_SHIFT].pollLast();
+		if (buffer == null && this.ensureRawFileBudget(capacity)) {
+			buffer = MemoryUtil.memAlloc(capacity);
+			this.rawFileBytesAllocated += capacity;
+			WebStreamerMod.LOGGER.debug("Allocated raw file buffers: {}/{} bytes", this.rawFileBytesAllocated, RAW_FILE_BUFFER_BUDGET);
+		}
+		if (buffer != null) {
+			this.rawFileBytesUsed += capacity;
+			buffer.clear();
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Ensure that the given capacity can be allocated within the budget, by freeing
+	 * unused raw file buffers if needed. The lock must be held.
+	 */
+	private boolean ensureRawFileBudget(int capacity) {
+		if (this.rawFileBytesAllocated + capacity <= RAW_FILE_BUFFER_BUDGET) {
+			return true;
+		}
+		for (ArrayDeque<ByteBuffer> buffers : this.rawFileBuffers) {
+			ByteBuffer buffer;
+			while ((buffer = buffers.pollFirst()) != null) {
+				this.rawFileBytesAllocated -= buffer.capacity();
+				MemoryUtil.memFree(buffer);
+				if (this.rawFileBytesAllocated + capacity <= RAW_FILE_BUFFER_BUDGET) {
+					return true;
 				}
-				this.rawFileBuffersCount++;
-				WebStreamerMod.LOGGER.debug("Number of allocated raw file buffers: {}", this.rawFileBuffersCount);
-				return ByteBuffer.allocate(RAW_FILE_BUFFER_SIZE);
 			}
 		}
+		return false;
 	}
 	
 	public void freeRawFileBuffer(ByteBuffer buffer) {
-		synchronized (this.rawFileBuffers) {
-			this.rawFileBuffers.add(buffer);
+		this.rawFileLock.lock();
+		try {
+			int shift = Integer.numberOfTrailingZeros(buffer.capacity());
+			this.rawFileBuffers[shift - RAW_FILE_BUFFER_MIN_SHIFT].addLast(buffer);
+			this.rawFileBytesUsed -= buffer.capacity();
+			this.rawFileFreed.signalAll();
+		} finally {
+			this.rawFileLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return A snapshot of the raw file buffers occupancy.
+	 */
+	public RawFileBufferStats getRawFileBufferStats() {
+		this.rawFileLock.lock();
+		try {
+			return new RawFileBufferStats(RAW_FILE_BUFFER_BUDGET, this.rawFileBytesAllocated, this.rawFileBytesUsed, this.rawFileWaitingCount, this.rawFileFailedCount);
+		} finally {
+			this.rawFileLock.unlock();
 		}
 	}
 	
@@ -106,4 +330,56 @@ public class DisplayLayerResources {
 		}
 	}
 	
+	/**
+	 * Record the cancellation of a task whose result was no longer needed, from any thread.
+	 * @param task The kind of task cancelled.
+	 */
+	public void recordCancelled(CancelledTask task) {
+		this.cancelledCounts.incrementAndGet(task.ordinal());
+	}
+	
+	/**
+	 * @return A snapshot of the number of cancelled tasks.
+	 */
+	public CancellationStats getCancellationStats() {
+		return new CancellationStats(
+				this.cancelledCounts.get(CancelledTask.SEGMENT_REQUEST.ordinal()),
+				this.cancelledCounts.get(CancelledTask.SEGMENT_DOWNLOAD.ordinal()),
+				this.cancelledCounts.get(CancelledTask.PLAYLIST_REQUEST.ordinal()),
+				this.cancelledCounts.get(CancelledTask.GRABBER_START.ordinal()));
+	}
+	
+	/**
+	 * Kinds of tasks that are cancelled when their result is no longer needed.
+	 */
+	public enum CancelledTask {
+		/** A segment request abandoned by its layer before completion. */
+		SEGMENT_REQUEST,
+		/** A segment download aborted because nobody holds its data anymore. */
+		SEGMENT_DOWNLOAD,
+		/** A media playlist request abandoned by its layer before completion. */
+		PLAYLIST_REQUEST,
+		/** A grabber start abandoned because its decoder has been reset. */
+		GRABBER_START,
+	}
+	
+	/**
+	 * Occupancy of raw file buffers.
+	 * @param budget The maximum number of bytes that can be allocated.
+	 * @param allocated The number of bytes allocated, used or not.
+	 * @param used The number of bytes currently used.
+	 * @param waiting The number of threads waiting for the budget.
+	 * @param failed The number of allocations that failed since startup.
+	 */
+	public record RawFileBufferStats(long budget, long allocated, long used, int waiting, long failed) { }
+	
+	/**
+	 * Number of cancelled tasks since startup, see {@link CancelledTask}.
+	 * @param segmentRequests The number of abandoned segment requests.
+	 * @param segmentDownloads The number of aborted segment downloads.
+	 * @param playlistRequests The number of abandoned media playlist requests.
+	 * @param grabberStarts The number of abandoned grabber starts.
+	 */
+	public record CancellationStats(long segmentRequests, long segmentDownloads, long playlistRequests, long grabberStarts) { }
+	
 }
@@ -4,13 +4,19 @@ import com.mojang.blaze3d.systems.RenderSystem;
 import fr.theorozier.webstreamer.WebStreamerMod;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
+import net.fabricmc.fabric.api.client.rendering.v1.CoreShaderRegistrationCallback;
+import net.minecraft.client.gl.GlUniform;
+import net.minecraft.client.gl.ShaderProgram;
 import net.minecraft.client.render.RenderLayer;
 import net.minecraft.client.render.RenderPhase;
 import net.minecraft.client.render.VertexFormat;
 import net.minecraft.client.render.VertexFormats;
+import net.minecraft.util.Identifier;
 import net.minecraft.util.math.Vec3i;
+import org.joml.Matrix3f;
 import org.lwjgl.opengl.GL11;
 
+import java.io.IOException;
 import java.net.URI;
 
 /**
@@ -23,6 +29,38 @@ public abstract class DisplayLayerSimple implements DisplayLayerNode, DisplayLay
 	/** The timeout for a layer to be considered unused */
 	protected static final long LAYER_UNUSED_TIMEOUT = 15L * 1000000000L;
 	
+	/** Limited range BT.601 YUV to RGB matrix, used by SD streams, columns are Y, U and V. */
+	private static final Matrix3f BT601_MATRIX = new Matrix3f(
+			1f, 1f, 1f,
+			0f, -0.391762f, 2.017232f,
+			1.596027f, -0.812968f, 0f);
+	/** Limited range BT.709 YUV to RGB matrix, used by HD streams, columns are Y, U and V. */
+	private static final Matrix3f BT709_MATRIX = new Matrix3f(
+			1f, 1f, 1f,
+			0f, -0.213249f, 2.112402f,
+			1.792741f, -0.532909f, 0f);
+	
+	/** Program rendering YUV textures, see {@link DisplayTexture}, null until loaded. It's
+	 * read by decoder threads to choose the format of decoded frames. */
+	private static volatile ShaderProgram yuvProgram;
+	/** Set once a YUV texture could not be rendered, to only log it once. */
+	private static boolean yuvProgramMissingLogged;
+	
+	/**
+	 * Register the shader programs used by display layers, called once on client init.
+	 */
+	public static void registerPrograms(CoreShaderRegistrationCallback.RegistrationContext context) throws IOException {
+		context.register(new Identifier("webstreamer:display_yuv"), VertexFormats.POSITION_TEXTURE, program -> yuvProgram = program);
+	}
+	
+	/**
+	 * @return True if YUV textures can be rendered, from any thread. Frames should be
+	 * decoded to BGR otherwise.
+	 */
+	public static boolean isYuvProgramLoaded() {
+		return yuvProgram != null;
+	}
+	
 	// Common //
 	protected final URI uri;
 	protected final DisplayLayerResources res;
@@ -33,6 +71,12 @@ public abstract class DisplayLayerSimple implements DisplayLayerNode, DisplayLay
 	/** Time in nanoseconds (monotonic) of the last use. */
 	protected long lastUse = 0;
 	
+	// Tasks //
+	/** Priority of tasks submitted for this layer, see {@link DisplayLayerResources#getTaskPriority}. */
+	protected int taskPriority = DisplayLayerResources.getTaskPriority(Float.MAX_VALUE, false);
+	/** Highest task priority pushed since the last update. */
+	private int pushedTaskPriority = this.taskPriority;
+	
 	public DisplayLayerSimple(URI uri, DisplayLayerResources res) {
 		this.uri = uri;
 		this.res = res;
@@ -66,6 +110,28 @@ public abstract class DisplayLayerSimple implements DisplayLayerNode, DisplayLay
 	@Override
 	public void pushAudioSource(Vec3i pos, float dist, float audioDistance, float audioVolume) { }
 
+	@Override
+	public void pushView(float dist, float screenSize, int pixelWidth, int pixelHeight) {
+		this.pushTaskPriority(dist, true);
+	}
+	
+	/**
+	 * Push the task priority of a display using this layer.
+	 * @see DisplayLayerResources#getTaskPriority(float, boolean)
+	 */
+	protected void pushTaskPriority(float dist, boolean visible) {
+		this.pushedTaskPriority = Math.min(this.pushedTaskPriority, DisplayLayerResources.getTaskPriority(dist, visible));
+	}
+	
+	/**
+	 * Apply the highest task priority pushed since the last update, to be called once per
+	 * tick before submitting tasks.
+	 */
+	protected void updateTaskPriority() {
+		this.taskPriority = this.pushedTaskPriority;
+		this.pushedTaskPriority = DisplayLayerResources.getTaskPriority(Float.MAX_VALUE, false);
+	}
+
 	@Override
 	public boolean isLost() {
 		return false;
@@ -91,10 +157,31 @@ public abstract class DisplayLayerSimple implements DisplayLayerNode, DisplayLay
 					256, false, true,
 					() -> {
 						layer.lastUse = System.nanoTime();
-						RenderPhase.POSITION_TEXTURE_PROGRAM.startDrawing();
+						ShaderProgram program = yuvProgram;
+						int glId = layer.tex.getGlId();
+						if (!layer.tex.isYuv()) {
+							RenderPhase.POSITION_TEXTURE_PROGRAM.startDrawing();
+						} else if (program != null) {
+							GlUniform matrix = program.getUniform("YuvMatrix");
+							if (matrix != null) {
+								matrix.set(layer.tex.isBt709() ? BT709_MATRIX : BT601_MATRIX);
+							}
+							RenderSystem.setShader(() -> program);
+							RenderSystem.setShaderTexture(1, layer.tex.getChromaGlId(0));
+							RenderSystem.setShaderTexture(2, layer.tex.getChromaGlId(1));
+						} else {
+							// The luma plane must never be rendered as RGB, the display is
+							// left black instead.
+							if (!yuvProgramMissingLogged) {
+								yuvProgramMissingLogged = true;
+								WebStreamerMod.LOGGER.error("The YUV display program is not loaded, YUV frames can't be rendered.");
+							}
+							RenderPhase.POSITION_TEXTURE_PROGRAM.startDrawing();
+							glId = 0;
+						}
 						RenderSystem.enableDepthTest();
 						RenderSystem.depthFunc(GL11.GL_LEQUAL);
-						RenderSystem.setShaderTexture(0, layer.tex.getGlId());
+						RenderSystem.setShaderTexture(0, glId);
 					},
 					RenderSystem::disableDepthTest);
 		}
@@ -3,14 +3,14 @@ package fr.theorozier.webstreamer.display.render;
 import fr.theorozier.webstreamer.WebStreamerMod;
 import fr.theorozier.webstreamer.display.DisplayBlockEntity;
 import fr.theorozier.webstreamer.display.source.DisplaySource;
+import fr.theorozier.webstreamer.playlist.PlaylistQuality;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 
 import java.net.URI;
+import java.util.List;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>A display render data is an extension added to the {@link DisplayBlockEntity} class
@@ -18,6 +18,8 @@ import java.util.concurrent.Future;
  * {@link DisplaySource#getUri()} of the block entity (because that method is blocking).
  * This allows non-blocking request of the URL from the display renderer.
  * </p>
+ * <p>The resolved URI is delivered through the completion queue of the resources, so
+ * pending requests are not polled on each frame.</p>
  */
 @Environment(EnvType.CLIENT)
 public class DisplayRenderData {
@@ -25,8 +27,9 @@ public class DisplayRenderData {
 	private final DisplayBlockEntity display;
 	
 	private boolean sourceDirty;
-	private Future<URI> futureUri;
+	private CompletableFuture<ResolvedSource> futureUri;
 	private URI uri;
+	private List<PlaylistQuality> variants = List.of();
 	
 	public DisplayRenderData(DisplayBlockEntity display) {
 		this.display = display;
@@ -45,36 +48,67 @@ public class DisplayRenderData {
 	 * Get the URL of a specific display. This method must be called from 
 	 * {@link DisplayBlockEntityRenderer} only in the render thread.
 	 * 
-	 * @param executor The executor to execute async code on.
+	 * @param res The resources providing the lane to execute async code on, and the
+	 *            completion queue delivering the URI.
+	 * @param priority The priority of the request if needed, see {@link DisplayLayerResources#getTaskPriority}.
 	 * @return Return a non-null URL when loaded.
 	 */
-	public URI getUri(ExecutorService executor) {
+	public URI getUri(DisplayLayerResources res, int priority) {
 		
 		if (this.sourceDirty) {
 			this.uri = null;
-			this.futureUri = executor.submit(() -> this.display.getSource().getUri());
+			this.variants = List.of();
+			CompletableFuture<ResolvedSource> future = CompletableFuture.supplyAsync(() -> {
+				DisplaySource source = this.display.getSource();
+				URI uri = source.getUri();
+				return new ResolvedSource(uri, uri == null ? List.of() : source.getVariants());
+			}, res.getNetworkLane().withPriority(priority));
+			res.getCompletionQueue().deliver(future, (resolved, error) -> this.onResolved(future, resolved, error));
+			this.futureUri = future;
 			this.sourceDirty = false;
 		}
 		
-		if (this.futureUri != null && this.futureUri.isDone()) {
-			try {
-				this.uri = this.futureUri.get();
-				if (this.uri == null) {
-					WebStreamerMod.LOGGER.info(this.display.makeLog("Caching no display URI."));
-				} else {
-					WebStreamerMod.LOGGER.info(this.display.makeLog("Caching display URI: {}"), this.uri);
-				}
-			} catch (InterruptedException | CancellationException e) {
-				// Cancel should not happen.
-			} catch (ExecutionException e) {
-				WebStreamerMod.LOGGER.warn(this.display.makeLog("Error caching display URI."), e);
-			} finally {
-				this.futureUri = null;
-			}
+		return this.uri;
+		
+	}
+	
+	/**
+	 * Called from the render thread when a request of the URI completes.
+	 */
+	private void onResolved(CompletableFuture<ResolvedSource> future, ResolvedSource resolved, Throwable error) {
+		
+		if (this.futureUri != future) {
+			// The source has changed while resolving.
+			return;
 		}
 		
-		return this.uri;
+		this.futureUri = null;
+		
+		if (error == null) {
+			this.uri = resolved.uri;
+			this.variants = resolved.variants;
+			if (this.uri == null) {
+				WebStreamerMod.LOGGER.info(this.display.makeLog("Caching no display URI."));
+			} else {
+				WebStreamerMod.LOGGER.info(this.display.makeLog("Caching display URI: {}"), this.uri);
+			}
+		} else if (!(error instanceof CancellationException)) {
+			WebStreamerMod.LOGGER.warn(this.display.makeLog("Error caching display URI."), error);
+		}
 		
 	}
+	
+	/**
+	 * Get the variants of the resource, resolved along with the URI, see
+	 * {@link DisplaySource#getVariants()}. This method must be called from the render
+	 * thread, after {@link #getUri} has returned a non-null URI.
+	 * 
+	 * @return The variants, from the highest to the lowest quality, maybe empty.
+	 */
+	public List<PlaylistQuality> getVariants() {
+		return this.variants;
+	}
+	
+	private record ResolvedSource(URI uri, List<PlaylistQuality> variants) { }
 
 }
@@ -1,7 +1,9 @@
 package fr.theorozier.webstreamer.display.render;
 
 import com.mojang.blaze3d.platform.GlStateManager;
+import com.mojang.blaze3d.platform.TextureUtil;
 import com.mojang.blaze3d.systems.RenderSystem;
+import fr.theorozier.webstreamer.WebStreamerMod;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.minecraft.client.texture.AbstractTexture;
@@ -10,17 +12,52 @@ import org.bytedeco.javacv.Frame;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL12;
 import org.lwjgl.opengl.GL14;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.system.MemoryUtil;
 
 import java.nio.ByteBuffer;
 
+/**
+ * <p>A texture that is frequently updated with video frames.</p>
+ * <p>Uploads go through a pair of pixel buffer objects used in turn, the data is copied
+ * to the buffer's storage and the texture is then updated from it, so the driver can
+ * transfer pixels while rendering continues, instead of copying them synchronously from
+ * client memory. Buffers are orphaned on each upload, so the driver can give fresh
+ * storage if the previous one is still being transferred. Direct uploads are used if
+ * buffers cannot be mapped, or can be forced with the
+ * {@code webstreamer.directTextureUpload} system property.</p>
+ * <p>Planar YUV frames are uploaded to three single channel textures, this texture
+ * holds the luma plane and two other textures hold the chroma planes, the conversion to
+ * RGB is done by the display shader program.</p>
+ */
 @Environment(EnvType.CLIENT)
 public class DisplayTexture extends AbstractTexture {
 
+    /** True to always upload directly from client memory, without pixel buffer objects. */
+    private static final boolean DIRECT_UPLOAD = Boolean.getBoolean("webstreamer.directTextureUpload");
+
     private int width = -1, height = -1;
     private int format = -1;
 
+    /** Textures of the U and V planes for YUV frames, 0 if not yet generated. */
+    private final int[] chromaGlIds = new int[2];
+    /** True if the last YUV frame uses the BT.709 matrix, false for the BT.601 one. */
+    private boolean bt709;
+
+    /** Pixel buffer objects used in turn for uploads, 0 if not yet generated. */
+    private final int[] pixelBuffers = new int[2];
+    private int pixelBufferIndex = 0;
+    /** Set if a pixel buffer could not be mapped, direct uploads are then used. */
+    private boolean pixelBufferFailed = false;
+
     public DisplayTexture() {
-        GlStateManager._bindTexture(this.getGlId());
+        initParameters(this.getGlId());
+    }
+
+    private static void initParameters(int glId) {
+        GlStateManager._bindTexture(glId);
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, 0);
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MIN_LOD, 0);
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LOD, 0);
@@ -28,34 +65,84 @@ public class DisplayTexture extends AbstractTexture {
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP);
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP);
     }
-    
+
     private void uploadBind(int internalFormat, int width, int height, int dataWidth, int alignment) {
-    
+
         GlStateManager._bindTexture(this.getGlId());
-        
+
         if (this.width != width || this.height != height || this.format != internalFormat) {
             GlStateManager._texImage2D(GL11.GL_TEXTURE_2D, 0, internalFormat, width, height, 0, GL12.GL_BGR, GL11.GL_UNSIGNED_BYTE, null);
             this.width = width;
             this.height = height;
             this.format = internalFormat;
         }
-    
+
         GlStateManager._pixelStore(GL11.GL_UNPACK_ALIGNMENT, alignment);
         GlStateManager._pixelStore(GL11.GL_UNPACK_ROW_LENGTH, dataWidth);
         GlStateManager._pixelStore(GL11.GL_UNPACK_SKIP_ROWS, 0);
         GlStateManager._pixelStore(GL11.GL_UNPACK_SKIP_PIXELS, 0);
-    
+
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
-        
+
     }
 
     public void uploadRaw(ByteBuffer data, int internalFormat, int width, int height, int dataWidth, int dataFormat, int alignment) {
         RenderSystem.assertOnRenderThread();
         this.uploadBind(internalFormat, width, height, dataWidth, alignment);
-        GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, width, height, dataFormat, GL11.GL_UNSIGNED_BYTE, data);
+        boolean pixelBuffer = this.bindPixelBuffer(data);
+        try {
+            // With a bound pixel unpack buffer, the pointer is an offset in the buffer.
+            GL11.nglTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, width, height, dataFormat, GL11.GL_UNSIGNED_BYTE, pixelBuffer ? 0L : MemoryUtil.memAddress(data));
+        } finally {
+            if (pixelBuffer) {
+                GlStateManager._glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+            }
+        }
     }
-    
+
+    /**
+     * Copy the data to the next pixel buffer object and leave it bound, if pixel buffers
+     * are used.
+     * @return False if the data should be uploaded directly, no buffer is bound.
+     */
+    private boolean bindPixelBuffer(ByteBuffer data) {
+
+        if (DIRECT_UPLOAD || this.pixelBufferFailed) {
+            return false;
+        }
+
+        int index = this.pixelBufferIndex;
+        this.pixelBufferIndex = (index + 1) % this.pixelBuffers.length;
+
+        if (this.pixelBuffers[index] == 0) {
+            this.pixelBuffers[index] = GlStateManager._glGenBuffers();
+        }
+
+        int size = data.remaining();
+        GlStateManager._glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, this.pixelBuffers[index]);
+
+        // Orphan the previous storage, it may still be read by a previous upload.
+        GL15.glBufferData(GL21.GL_PIXEL_UNPACK_BUFFER, size, GL15.GL_STREAM_DRAW);
+        ByteBuffer mapped = GL30.glMapBufferRange(GL21.GL_PIXEL_UNPACK_BUFFER, 0, size, GL30.GL_MAP_WRITE_BIT | GL30.GL_MAP_INVALIDATE_BUFFER_BIT);
+        if (mapped == null) {
+            WebStreamerMod.LOGGER.warn("Failed to map texture pixel buffer, falling back to direct uploads.");
+            this.pixelBufferFailed = true;
+            GlStateManager._glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+            return false;
+        }
+
+        MemoryUtil.memCopy(data, mapped);
+        if (!GL15.glUnmapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER)) {
+            // The storage has been corrupted, this is rare and only affects this upload.
+            GlStateManager._glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+            return false;
+        }
+
+        return true;
+
+    }
+
     public void upload(Frame frame) {
         if (frame.imageDepth == Frame.DEPTH_UBYTE && frame.imageChannels == 3) {
             ByteBuffer data = (ByteBuffer) frame.image[0];
@@ -63,7 +150,118 @@ public class DisplayTexture extends AbstractTexture {
         }
     }
 
+    public void upload(FrameDecoder.DecodedFrame frame) {
+        if (frame.isYuv()) {
+            this.uploadYuv(frame);
+        } else {
+            this.uploadRaw(frame.getData(), GL11.GL_RGB8, frame.getWidth(), frame.getHeight(), frame.getStride() / 3, GL12.GL_BGR, 4);
+        }
+    }
+
+    private void uploadYuv(FrameDecoder.DecodedFrame frame) {
+
+        RenderSystem.assertOnRenderThread();
+
+        if (this.chromaGlIds[0] == 0) {
+            for (int i = 0; i < this.chromaGlIds.length; ++i) {
+                this.chromaGlIds[i] = TextureUtil.generateTextureId();
+                initParameters(this.chromaGlIds[i]);
+            }
+        }
+
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+
+        boolean allocate = this.width != width || this.height != height || this.format != GL30.GL_R8;
+        if (allocate) {
+            this.width = width;
+            this.height = height;
+            this.format = GL30.GL_R8;
+        }
+
+        this.bt709 = frame.isBt709();
+
+        ByteBuffer data = frame.getData();
+        boolean pixelBuffer = this.bindPixelBuffer(data);
+        try {
+            uploadPlane(this.getGlId(), allocate, width, height, frame, 0, pixelBuffer);
+            uploadPlane(this.chromaGlIds[0], allocate, chromaWidth, chromaHeight, frame, 1, pixelBuffer);
+            uploadPlane(this.chromaGlIds[1], allocate, chromaWidth, chromaHeight, frame, 2, pixelBuffer);
+        } finally {
+            if (pixelBuffer) {
+                GlStateManager._glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+            }
+        }
+
+    }
+
+    private static void uploadPlane(int glId, boolean allocate, int width, int height, FrameDecoder.DecodedFrame frame, int plane, boolean pixelBuffer) {
+
+        GlStateManager._bindTexture(glId);
+
+        if (allocate) {
+            GlStateManager._texImage2D(GL11.GL_TEXTURE_2D, 0, GL30.GL_R8, width, height, 0, GL11.GL_RED, GL11.GL_UNSIGNED_BYTE, null);
+        }
+
+        GlStateManager._pixelStore(GL11.GL_UNPACK_ALIGNMENT, 1);
+        GlStateManager._pixelStore(GL11.GL_UNPACK_ROW_LENGTH, frame.getPlaneStride(plane));
+        GlStateManager._pixelStore(GL11.GL_UNPACK_SKIP_ROWS, 0);
+        GlStateManager._pixelStore(GL11.GL_UNPACK_SKIP_PIXELS, 0);
+
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+
+        int offset = frame.getPlaneOffset(plane);
+        long pixels = pixelBuffer ? offset : MemoryUtil.memAddress(frame.getData(), offset);
+        GL11.nglTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, width, height, GL11.GL_RED, GL11.GL_UNSIGNED_BYTE, pixels);
+
+    }
+
+    /**
+     * @return True if the last upload was a YUV frame, the texture then holds the luma
+     * plane and must be rendered with the chroma textures and the YUV program.
+     */
+    public boolean isYuv() {
+        return this.format == GL30.GL_R8;
+    }
+
+    /**
+     * @return True if the YUV planes must be converted with the BT.709 matrix, false for
+     * the BT.601 one, only valid if {@link #isYuv()}.
+     */
+    public boolean isBt709() {
+        return this.bt709;
+    }
+
+    /**
+     * @param index 0 for the U plane, 1 for the V plane.
+     * @return The texture of the chroma plane, only valid if {@link #isYuv()}.
+     */
+    public int getChromaGlId(int index) {
+        return this.chromaGlIds[index];
+    }
+
     @Override
     public void load(ResourceManager manager) { }
 
+    @Override
+    public void clearGlId() {
+        RenderSystem.assertOnRenderThreadOrInit();
+        for (int i = 0; i < this.chromaGlIds.length; ++i) {
+            if (this.chromaGlIds[i] != 0) {
+                TextureUtil.releaseTextureId(this.chromaGlIds[i]);
+                this.chromaGlIds[i] = 0;
+            }
+        }
+        for (int i = 0; i < this.pixelBuffers.length; ++i) {
+            if (this.pixelBuffers[i] != 0) {
+                GlStateManager._glDeleteBuffers(this.pixelBuffers[i]);
+                this.pixelBuffers[i] = 0;
+            }
+        }
+        super.clearGlId();
+    }
+
 }
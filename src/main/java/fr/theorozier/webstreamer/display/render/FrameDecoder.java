@@ -0,0 +1,770 @@
+package fr.theorozier.webstreamer.display.render;
+
+import fr.theorozier.webstreamer.WebStreamerMod;
+import fr.theorozier.webstreamer.display.audio.AudioStreamingBuffer;
+import fr.theorozier.webstreamer.util.CancellationToken;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.javacv.Frame;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * <p>A decoder running a dedicated thread for a single {@link DisplayLayerHls}, it takes
+ * segments in order and decodes them into a small bounded ring of presentation-ready
+ * frames. The render thread then only has to pick the frame for its current timestamp
+ * and upload it.</p>
+ * <p>Consecutive segments are read by a single long-lived {@link FrameGrabber}, as one
+ * continuous stream. A new grabber is only started on a discontinuity or when decoding
+ * fails, each grabber starts a new epoch of timestamps.</p>
+ * <p>The ring provides backpressure: when every frame slot is waiting to be presented,
+ * the decoder thread waits for the render thread to release one.</p>
+ * <p>Every method of this class, except the internal thread, must be called from the
+ * render thread.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class FrameDecoder {
+
+	/** Number of decoded frames that can wait for presentation. */
+	private static final int RING_CAPACITY = 3;
+	/** Interval for the decoder thread to check for resets while waiting. */
+	private static final long WAIT_INTERVAL = 50L;
+	/** Frames that are late by more than this number of microseconds are not copied to the ring. */
+	private static final long LATE_FRAME_THRESHOLD = 100000L;
+	/** Minimum interval between two presented frames with {@link Lod#REDUCED}, in microseconds. */
+	private static final long REDUCED_FRAME_INTERVAL = 100000L;
+	/** Smoothing factor of the decode load average, per frame. */
+	private static final double DECODE_LOAD_SMOOTHING = 0.05;
+
+	private static final AtomicInteger COUNTER = new AtomicInteger();
+
+	private final String name;
+	private final DisplayLayerResources res;
+	private final Thread thread;
+
+	/** Segments waiting to be decoded, in segment order. */
+	private final BlockingQueue<PendingSegment> pendingSegments = new LinkedBlockingQueue<>();
+	/** Decoded frames that are free to be filled by the decoder thread. */
+	private final BlockingQueue<DecodedFrame> freeFrames = new ArrayBlockingQueue<>(RING_CAPACITY);
+	/** Decoded frames waiting to be presented by the render thread, in timestamp order. */
+	private final BlockingQueue<DecodedFrame> readyFrames = new ArrayBlockingQueue<>(RING_CAPACITY);
+	/** Audio buffers decoded along with frames, waiting to be queued by the render thread. */
+	private final ConcurrentLinkedQueue<TaggedAudioBuffer> audioBuffers = new ConcurrentLinkedQueue<>();
+
+	/** Incremented on each reset, any frame or segment from a previous generation is discarded. */
+	private volatile int generation;
+	/** Token of the current generation, cancelled on reset so that a grabber waiting for
+	 * bytes of a discarded segment, even while starting, stops at once. */
+	private volatile CancellationToken token = new CancellationToken();
+	/** The epoch currently presented by the render thread. */
+	private volatile int playbackEpoch;
+	/** The timestamp currently presented by the render thread, in microseconds. */
+	private volatile long playbackTimestamp;
+	private volatile boolean running = true;
+	/** Average ratio of time spent decoding to the media time decoded, -1 if unknown. */
+	private volatile double decodeLoad = -1;
+	/** Level of detail for decoding video. */
+	private volatile Lod lod = Lod.FULL;
+	/** Target size of decoded frames in pixels, 0 for the native size. */
+	private volatile int targetWidth, targetHeight;
+	/** False to discard the audio stream without decoding it. */
+	private volatile boolean audioActive = true;
+
+	// Decoder thread only //
+	/** Epoch of the last started grabber. */
+	private int epoch;
+	/** A segment that has been taken but that must start a new grabber. */
+	private PendingSegment carriedSegment;
+	/** Total time spent waiting for segment bytes, in nanoseconds, excluded from the decode load. */
+	private long readWaitTime;
+
+	public FrameDecoder(String name, DisplayLayerResources res) {
+		this.name = name;
+		this.res = res;
+		for (int i = 0; i < RING_CAPACITY; ++i) {
+			this.freeFrames.add(new DecodedFrame());
+		}
+		this.thread = new Thread(this::run, "WebStreamer Display Decoder (" + COUNTER.getAndIncrement() + ")");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Push a segment to be decoded after the already pushed ones. The decoder takes
+	 * ownership of the segment input and will release it when done.
+	 * @param segment The absolute index of the segment.
+	 * @param input The segment input.
+	 * @param discontinuity True if this segment doesn't directly follow the previously
+	 *                      pushed one, in such case a new grabber is started for it.
+	 */
+	public void push(int segment, SegmentInput input, boolean discontinuity) {
+		this.pendingSegments.add(new PendingSegment(input, segment, discontinuity, this.generation));
+	}
+
+	/**
+	 * Notify the decoder of the currently presented time, frames that are too late for
+	 * it are not copied to the ring.
+	 * @param epoch The presented epoch.
+	 * @param timestamp The presented timestamp, in microseconds.
+	 */
+	public void setPlayback(int epoch, long timestamp) {
+		this.playbackEpoch = epoch;
+		this.playbackTimestamp = timestamp;
+	}
+
+	/**
+	 * Set the level of detail for decoding video, it's applied from the next frame. When
+	 * increasing the level of detail from key frames only, the next key frame is awaited.
+	 * @param lod The level of detail.
+	 */
+	public void setLod(Lod lod) {
+		this.lod = lod;
+	}
+
+	/**
+	 * Set whether audio is decoded, when inactive the audio stream is discarded without
+	 * being decoded and no audio buffer is produced. Audio resumes from the position of the
+	 * decoder, which is ahead of the playback, so it resumes in sync with the playback.
+	 * @param audioActive False to discard audio.
+	 */
+	public void setAudioActive(boolean audioActive) {
+		this.audioActive = audioActive;
+	}
+
+	/**
+	 * Set the target size of decoded frames, frames are scaled down to a size bucket
+	 * that is larger than the target, see {@link FrameGrabber#setTargetSize(int, int)}.
+	 * @param width The target width in pixels, 0 for the native size.
+	 * @param height The target height in pixels, 0 for the native size.
+	 */
+	public void setTargetSize(int width, int height) {
+		this.targetWidth = width;
+		this.targetHeight = height;
+	}
+
+	/**
+	 * Discard every pushed segment, decoded frame and decoded audio buffer.
+	 */
+	public void reset() {
+		this.generation++;
+		CancellationToken token = this.token;
+		this.token = new CancellationToken();
+		token.cancel();
+		DecodedFrame frame;
+		while ((frame = this.readyFrames.poll()) != null) {
+			this.freeFrames.add(frame);
+		}
+		TaggedAudioBuffer audioBuffer;
+		while ((audioBuffer = this.audioBuffers.poll()) != null) {
+			audioBuffer.buffer.free();
+		}
+	}
+
+	/**
+	 * Stop the decoder thread, it will release every remaining resources by itself.
+	 * This decoder should not be used after that.
+	 */
+	public void free() {
+		this.reset();
+		this.running = false;
+		this.thread.interrupt();
+	}
+
+	/**
+	 * @return The average ratio of time spent decoding frames to the media time they
+	 * represent, above 1 the decoder cannot keep up with real time, -1 if unknown yet.
+	 * Time spent waiting for segments to be downloaded is excluded.
+	 */
+	public double getDecodeLoad() {
+		return this.decodeLoad;
+	}
+
+	/**
+	 * Give all audio buffers of the given epoch decoded so far to the given consumer,
+	 * buffers of previous epochs are freed. Buffers only hold samples, they are uploaded
+	 * to OpenAL by the consumer on the render thread.
+	 * @param epoch The presented epoch.
+	 * @param audioBufferConsumer The consumer, usually the layer's audio source.
+	 */
+	public void pollAudio(int epoch, Consumer<AudioStreamingBuffer> audioBufferConsumer) {
+		int generation = this.generation;
+		TaggedAudioBuffer audioBuffer;
+		while ((audioBuffer = this.audioBuffers.peek()) != null) {
+			if (audioBuffer.generation != generation || audioBuffer.epoch < epoch) {
+				this.audioBuffers.remove().buffer.free();
+			} else if (audioBuffer.epoch == epoch) {
+				audioBufferConsumer.accept(this.audioBuffers.remove().buffer);
+			} else {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Peek the start of the next epoch after the given one, from the decoded frames or
+	 * audio buffers, because video may not be decoded depending on the level of detail.
+	 * @param epoch The presented epoch.
+	 * @return The start of the next epoch, or null if nothing from a next epoch has been
+	 * decoded yet.
+	 */
+	public EpochStart peekEpoch(int epoch) {
+		
+		int generation = this.generation;
+		EpochStart start = null;
+		
+		DecodedFrame frame;
+		while ((frame = this.readyFrames.peek()) != null && frame.generation != generation) {
+			this.freeFrames.add(this.readyFrames.remove());
+		}
+		if (frame != null && frame.epoch > epoch) {
+			start = new EpochStart(frame.epoch, frame.epochSegment, frame.timestamp);
+		}
+		
+		for (TaggedAudioBuffer audioBuffer : this.audioBuffers) {
+			if (audioBuffer.generation == generation && audioBuffer.epoch > epoch) {
+				if (start == null || audioBuffer.epoch < start.epoch
+						|| (audioBuffer.epoch == start.epoch && audioBuffer.buffer.timestamp < start.timestamp)) {
+					start = new EpochStart(audioBuffer.epoch, audioBuffer.epochSegment, audioBuffer.buffer.timestamp);
+				}
+				break;
+			}
+		}
+		
+		return start;
+		
+	}
+
+	/**
+	 * Poll the most recent decoded frame of the given epoch to present at the given time,
+	 * older frames are dropped. The returned frame must be given back with {@link #release}.
+	 * @param epoch The presented epoch.
+	 * @param timestamp The presented timestamp, in microseconds.
+	 * @return The frame to present, or null if the frame has not changed since last poll.
+	 */
+	public DecodedFrame pollFrame(int epoch, long timestamp) {
+		int generation = this.generation;
+		DecodedFrame latest = null;
+		DecodedFrame frame;
+		while ((frame = this.readyFrames.peek()) != null) {
+			if (frame.generation != generation || frame.epoch < epoch) {
+				this.freeFrames.add(this.readyFrames.remove());
+			} else if (frame.epoch == epoch && frame.timestamp <= timestamp) {
+				if (latest != null) {
+					this.freeFrames.add(latest);
+				}
+				latest = this.readyFrames.remove();
+			} else {
+				break;
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * Give back a frame returned by {@link #pollFrame} after presenting it.
+	 * @param frame The frame to release.
+	 */
+	public void release(DecodedFrame frame) {
+		this.freeFrames.add(frame);
+	}
+
+	private void run() {
+
+		try {
+			while (this.running) {
+				PendingSegment first = this.carriedSegment;
+				this.carriedSegment = null;
+				if (first == null) {
+					first = this.pendingSegments.take();
+				}
+				// The token is read first, so it's cancelled if the generation changes.
+				CancellationToken token = this.token;
+				if (first.generation == this.generation) {
+					this.decode(first, token);
+				} else {
+					first.input.release();
+				}
+			}
+		} catch (InterruptedException ignored) {
+			// Interrupted only when freed.
+		} finally {
+
+			if (this.carriedSegment != null) {
+				this.carriedSegment.input.release();
+				this.carriedSegment = null;
+			}
+
+			List<PendingSegment> remaining = new ArrayList<>();
+			this.pendingSegments.drainTo(remaining);
+			remaining.forEach(pending -> pending.input.release());
+
+			TaggedAudioBuffer audioBuffer;
+			while ((audioBuffer = this.audioBuffers.poll()) != null) {
+				audioBuffer.buffer.free();
+			}
+
+			this.readyFrames.drainTo(this.freeFrames);
+			this.freeFrames.forEach(DecodedFrame::free);
+			this.freeFrames.clear();
+
+		}
+
+	}
+
+	/**
+	 * Decode segments with a single grabber, starting with the given one, until the
+	 * sequence is interrupted by a discontinuity, a reset or an error.
+	 */
+	private void decode(PendingSegment first, CancellationToken token) throws InterruptedException {
+
+		int epoch = ++this.epoch;
+		int generation = first.generation;
+		Consumer<AudioStreamingBuffer> audioBufferConsumer = buffer -> this.audioBuffers.add(new TaggedAudioBuffer(buffer, generation, epoch, first.segment));
+
+		FrameGrabber grabber = new FrameGrabber(this.res, new SegmentSequenceStream(first, token));
+
+		try {
+			grabber.start();
+		} catch (IOException | RuntimeException e) {
+			if (token.isCancelled()) {
+				this.res.recordCancelled(DisplayLayerResources.CancelledTask.GRABBER_START);
+				WebStreamerMod.LOGGER.debug(this.makeLog("Cancelled grabber start at segment {}."), first.segment);
+			} else {
+				WebStreamerMod.LOGGER.error(this.makeLog("Failed to start grabber at segment {}."), first.segment, e);
+			}
+			return;
+		}
+
+		try {
+
+			long lastFrameTimestamp = -1;
+			long lastCopiedTimestamp = Long.MIN_VALUE;
+			long busyStart = System.nanoTime() - this.readWaitTime;
+			// The grabber may not start on a key frame.
+			boolean waitKeyFrame = true;
+
+			for (;;) {
+
+				if (!this.running || generation != this.generation) {
+					// The layer has been reset, nothing more of this grabber will be used.
+					return;
+				}
+
+				Lod lod = this.lod;
+				if (lod == Lod.KEY_FRAMES || lod == Lod.POSTER) {
+					// Skipped frames are references of the next ones until a key frame.
+					waitKeyFrame = true;
+				}
+
+				// Without audio nor video, key frames are still decoded but not presented,
+				// so that the grabber regularly returns and settings are applied.
+				boolean audioActive = this.audioActive;
+				grabber.setAudioEnabled(audioActive);
+				grabber.setTargetSize(this.targetWidth, this.targetHeight);
+				Frame frame = grabber.grabNext(audioBufferConsumer, lod != Lod.POSTER || !audioActive, waitKeyFrame);
+				if (frame == null) {
+					break;
+				}
+
+				long busyEnd = System.nanoTime() - this.readWaitTime;
+				if (frame.image == null || waitKeyFrame) {
+					// Load is only measured when decoding every frame.
+					lastFrameTimestamp = -1;
+				} else {
+					if (lastFrameTimestamp >= 0 && frame.timestamp > lastFrameTimestamp) {
+						this.pushDecodeLoad((double) (busyEnd - busyStart) / ((frame.timestamp - lastFrameTimestamp) * 1000.0));
+					}
+					lastFrameTimestamp = frame.timestamp;
+				}
+				busyStart = busyEnd;
+
+				if (frame.image == null) {
+					// Audio frame returned because video is not decoded.
+					continue;
+				}
+
+				if (lod == Lod.POSTER) {
+					continue;
+				}
+
+				waitKeyFrame = false;
+
+				if (this.playbackEpoch == epoch && frame.timestamp + LATE_FRAME_THRESHOLD < this.playbackTimestamp) {
+					// This frame would be dropped by the render thread anyway, and the
+					// following ones are likely late too, so catch up by only decoding
+					// audio until the next key frame.
+					waitKeyFrame = true;
+					continue;
+				}
+
+				if (lod == Lod.REDUCED && frame.timestamp - lastCopiedTimestamp < REDUCED_FRAME_INTERVAL) {
+					continue;
+				}
+
+				DecodedFrame decodedFrame = null;
+				while (decodedFrame == null) {
+					if (!this.running || generation != this.generation) {
+						return;
+					}
+					decodedFrame = this.freeFrames.poll(WAIT_INTERVAL, TimeUnit.MILLISECONDS);
+				}
+
+				// Waiting for a free slot is not decoding time, but the copy is.
+				busyStart = System.nanoTime() - this.readWaitTime;
+				decodedFrame.copy(frame, grabber, generation, epoch, first.segment);
+				this.readyFrames.add(decodedFrame);
+				lastCopiedTimestamp = frame.timestamp;
+
+			}
+
+		} catch (InterruptedIOException e) {
+			throw new InterruptedException();
+		} catch (IOException | RuntimeException e) {
+			if (Thread.interrupted()) {
+				// Interrupted while FFmpeg was reading, see the grabber's read callback.
+				throw new InterruptedException();
+			}
+			// Runtime exceptions must not end the decoder thread, pushed segments would
+			// never be released.
+			if (!token.isCancelled()) {
+				WebStreamerMod.LOGGER.error(this.makeLog("Failed to decode, restarting at next segment."), e);
+			}
+		} finally {
+			grabber.stop();
+		}
+
+	}
+
+	private void pushDecodeLoad(double load) {
+		double decodeLoad = this.decodeLoad;
+		this.decodeLoad = decodeLoad < 0 ? load : decodeLoad + (load - decodeLoad) * DECODE_LOAD_SMOOTHING;
+	}
+
+	/**
+	 * Take the next segment to continue the current grabber's stream.
+	 * @return The next segment, or null if the stream should end, in case of discontinuity
+	 * the segment is carried to start the next grabber.
+	 */
+	private PendingSegment takeNextSegment(int generation) throws InterruptedException {
+		while (this.running && generation == this.generation) {
+			PendingSegment next = this.pendingSegments.poll(WAIT_INTERVAL, TimeUnit.MILLISECONDS);
+			if (next != null) {
+				if (next.generation != generation) {
+					next.input.release();
+				} else if (next.discontinuity) {
+					this.carriedSegment = next;
+					return null;
+				} else {
+					return next;
+				}
+			}
+		}
+		return null;
+	}
+
+	private String makeLog(String message) {
+		return "[" + this.name + "] " + message;
+	}
+
+	private record PendingSegment(SegmentInput input, int segment, boolean discontinuity, int generation) { }
+
+	private record TaggedAudioBuffer(AudioStreamingBuffer buffer, int generation, int epoch, int epochSegment) { }
+
+	/**
+	 * The start of an epoch.
+	 * @param epoch The epoch.
+	 * @param epochSegment The absolute index of the segment the epoch starts with.
+	 * @param timestamp The timestamp of the first decoded frame or audio buffer of the
+	 *                  epoch, in microseconds.
+	 */
+	public record EpochStart(int epoch, int epochSegment, long timestamp) { }
+
+	/**
+	 * Level of detail for decoding video, audio is always decoded.
+	 */
+	public enum Lod {
+		/** Every frame is decoded and presented. */
+		FULL,
+		/** Every frame is decoded, but the presentation rate is reduced. */
+		REDUCED,
+		/** Only key frames are decoded and presented, other video packets are skipped. */
+		KEY_FRAMES,
+		/** No video is decoded, the last presented frame stays as a poster. */
+		POSTER,
+	}
+
+	/**
+	 * Internal stream reading consecutive segments one after another, blocking while
+	 * waiting for the next one to be pushed. Each segment input is released when fully
+	 * read, the stream ends on discontinuity or reset. This stream can be read natively
+	 * by the grabber. Time spent in reads is accounted as waiting, not decoding.
+	 */
+	private class SegmentSequenceStream extends InputStream implements FrameGrabber.NativeReadable {
+
+		private final int generation;
+		private final CancellationToken token;
+		private SegmentInput current;
+		private boolean ended;
+
+		private SegmentSequenceStream(PendingSegment first, CancellationToken token) {
+			this.generation = first.generation;
+			this.token = token;
+			this.current = first.input;
+		}
+
+		private void checkCancelled() throws IOException {
+			if (this.token.isCancelled()) {
+				throw new IOException("segment sequence cancelled");
+			}
+		}
+
+		/**
+		 * Ensure that there is a current segment, waiting for the next one if needed.
+		 * @return False if the stream has ended.
+		 */
+		private boolean advance() throws IOException {
+			while (this.current == null) {
+				if (this.ended) {
+					return false;
+				}
+				try {
+					PendingSegment next = takeNextSegment(this.generation);
+					if (next == null) {
+						this.ended = true;
+					} else {
+						this.current = next.input;
+					}
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			Objects.checkFromIndexSize(off, len, b.length);
+			if (len == 0) {
+				return 0;
+			}
+			this.checkCancelled();
+			long start = System.nanoTime();
+			try {
+				while (this.advance()) {
+					int read = this.current.read(b, off, len, this.token);
+					if (read >= 0) {
+						return read;
+					}
+					this.current.release();
+					this.current = null;
+				}
+				return -1;
+			} finally {
+				readWaitTime += System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public int read(long address, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			this.checkCancelled();
+			long start = System.nanoTime();
+			try {
+				while (this.advance()) {
+					int read = this.current.read(address, len, this.token);
+					if (read >= 0) {
+						return read;
+					}
+					this.current.release();
+					this.current = null;
+				}
+				return -1;
+			} finally {
+				readWaitTime += System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return this.read(b, 0, 1) == -1 ? -1 : (b[0] & 0xFF);
+		}
+
+		/**
+		 * Mark is reported as supported so JavaCV doesn't wrap this stream in a buffered
+		 * stream, which would read ahead bytes that the native reads would then skip. The
+		 * grabber never resets because seeking is disabled.
+		 */
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public void mark(int readLimit) { }
+
+		@Override
+		public void close() {
+			this.ended = true;
+			if (this.current != null) {
+				this.current.release();
+				this.current = null;
+			}
+		}
+
+	}
+
+	/**
+	 * A decoded YUV or BGR frame, copied from the grabber's frame to native memory owned
+	 * by the decoder, because the grabber reuses its frame on every grab.
+	 */
+	public static class DecodedFrame {
+
+		private ByteBuffer data;
+		private int width, height;
+		/** True if the data holds planar YUV 4:2:0, false for packed BGR. */
+		private boolean yuv;
+		/** True if YUV data uses the BT.709 matrix, false for the BT.601 one. */
+		private boolean bt709;
+		/** Offset and stride in bytes of each plane in the data, only the first for BGR. */
+		private final int[] planeOffsets = new int[3];
+		private final int[] planeStrides = new int[3];
+		/** Timestamp of the frame within its epoch, in microseconds. */
+		private long timestamp;
+		private int generation;
+		private int epoch;
+		/** Absolute index of the segment that started the frame's epoch. */
+		private int epochSegment;
+
+		private void copy(Frame frame, FrameGrabber grabber, int generation, int epoch, int epochSegment) {
+
+			int size;
+			if (grabber.isYuvFrames()) {
+				// All planes are in the same buffer, described by the converted picture.
+				AVFrame picture = (AVFrame) frame.opaque;
+				long base = picture.data(0).address();
+				for (int i = 0; i < 3; ++i) {
+					this.planeOffsets[i] = (int) (picture.data(i).address() - base);
+					this.planeStrides[i] = picture.linesize(i);
+				}
+				size = this.planeOffsets[2] + this.planeStrides[2] * ((frame.imageHeight + 1) / 2);
+				this.yuv = true;
+				this.bt709 = grabber.isBt709();
+			} else {
+				this.planeOffsets[0] = 0;
+				this.planeStrides[0] = frame.imageStride;
+				size = frame.imageStride * frame.imageHeight;
+				this.yuv = false;
+			}
+
+			ByteBuffer src = ((ByteBuffer) frame.image[0]).duplicate();
+			size = Math.min(src.remaining(), size);
+			src.limit(src.position() + size);
+
+			if (this.data == null) {
+				this.data = MemoryUtil.memAlloc(size);
+			} else if (this.data.capacity() < size) {
+				this.data = MemoryUtil.memRealloc(this.data, size);
+			}
+
+			this.data.clear();
+			MemoryUtil.memCopy(src, this.data);
+			this.data.limit(size);
+
+			this.width = frame.imageWidth;
+			this.height = frame.imageHeight;
+			this.timestamp = frame.timestamp;
+			this.generation = generation;
+			this.epoch = epoch;
+			this.epochSegment = epochSegment;
+
+		}
+
+		private void free() {
+			MemoryUtil.memFree(this.data);
+			this.data = null;
+		}
+
+		public ByteBuffer getData() {
+			return this.data;
+		}
+
+		public int getWidth() {
+			return this.width;
+		}
+
+		public int getHeight() {
+			return this.height;
+		}
+
+		/**
+		 * @return The stride in bytes of the BGR data, or of the luma plane for YUV data.
+		 */
+		public int getStride() {
+			return this.planeStrides[0];
+		}
+
+		/**
+		 * @return True if the data holds planar YUV 4:2:0, with chroma planes of half the
+		 * width and height, false if it holds packed BGR.
+		 */
+		public boolean isYuv() {
+			return this.yuv;
+		}
+
+		/**
+		 * @return True if the YUV data must be converted with the BT.709 matrix, false for
+		 * the BT.601 one, only valid for YUV data.
+		 */
+		public boolean isBt709() {
+			return this.bt709;
+		}
+
+		/**
+		 * @param plane The plane index, 0 for Y, 1 for U and 2 for V.
+		 * @return The offset in bytes of the plane in the data.
+		 */
+		public int getPlaneOffset(int plane) {
+			return this.planeOffsets[plane];
+		}
+
+		/**
+		 * @param plane The plane index, 0 for Y, 1 for U and 2 for V.
+		 * @return The stride in bytes of the plane.
+		 */
+		public int getPlaneStride(int plane) {
+			return this.planeStrides[plane];
+		}
+
+		public long getTimestamp() {
+			return this.timestamp;
+		}
+
+		public int getEpoch() {
+			return this.epoch;
+		}
+
+		public int getEpochSegment() {
+			return this.epochSegment;
+		}
+
+	}
+
+}
@@ -1,99 +1,182 @@
 package fr.theorozier.webstreamer.display.render;
 
-import fr.theorozier.webstreamer.WebStreamerMod;
+import fr.theorozier.webstreamer.display.audio.AudioDownmixer;
 import fr.theorozier.webstreamer.display.audio.AudioStreamingBuffer;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.Frame;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ShortBuffer;
-import java.time.Duration;
-import java.util.ArrayDeque;
-import java.util.List;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionStage;
-import java.util.concurrent.Flow;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
+import static org.bytedeco.ffmpeg.global.avcodec.AVDISCARD_ALL;
+import static org.bytedeco.ffmpeg.global.avcodec.AVDISCARD_DEFAULT;
+import static org.bytedeco.ffmpeg.global.avutil.AVCOL_SPC_BT709;
+import static org.bytedeco.ffmpeg.global.avutil.AVCOL_SPC_UNSPECIFIED;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EOF;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EXIT;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_AUDIO;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_YUV420P;
+import static org.bytedeco.ffmpeg.global.avutil.AV_SAMPLE_FMT_FLT;
+import static org.bytedeco.ffmpeg.global.avutil.AV_SAMPLE_FMT_FLTP;
+import static org.bytedeco.ffmpeg.global.avutil.AV_SAMPLE_FMT_S16;
+import static org.bytedeco.ffmpeg.global.avutil.AV_SAMPLE_FMT_S16P;
+
 /**
  * <p>A custom FFMPEG frame grabber working with image frames priority, this means that multiple
- * audio frames can be grabbed before finding the right image frame for the right timestamp.</p>
+ * audio frames can be grabbed before finding the next image frame.</p>
+ * <p>A single grabber is used for a continuous stream of segments, given through one input
+ * stream that can block while waiting for the next segment, so the demuxer and decoders are
+ * only initialized once for all these segments.</p>
  * <p>The fact that FFMPEG will return the same {@link Frame} instance on every call requires us
- * to "bufferize" audio frames between each grab.</p>
+ * to "bufferize" audio frames between each grab. Consecutive audio frames are converted to
+ * mono and aggregated into a single audio buffer of a target duration, which is configurable
+ * with the {@code webstreamer.audioBufferDuration} system property in milliseconds, this
+ * avoids queueing dozens of tiny OpenAL buffers per second. Samples are given raw by JavaCV
+ * when their format is supported by the {@link AudioDownmixer}, like planar float samples of
+ * AAC decoders, so they are converted to mono in a single pass, instead of being resampled to
+ * interleaved 16 bits first.</p>
+ * <p>JavaCV reads input streams by copying every read through a Java array, if the stream
+ * is {@link NativeReadable}, this grabber replaces the read callback of the IO context once
+ * started, so FFmpeg reads directly from native memory.</p>
+ * <p>Images are grabbed as planar YUV 4:2:0, the format of almost every HLS stream, so
+ * FFmpeg's scaler only copies or scales planes, the conversion to RGB is done by the
+ * display shader program with the matrix of the video's color space. Packed BGR images
+ * are grabbed if the shader program is not loaded, and can be forced with the
+ * {@code webstreamer.bgrFrames} system property.</p>
  */
 @Environment(EnvType.CLIENT)
 public class FrameGrabber {
 
+	/** Native readable streams of started grabbers, mapped to the opaque address of their IO context. */
+	private static final ConcurrentHashMap<Long, NativeReadable> NATIVE_READABLES = new ConcurrentHashMap<>();
+	/** FFmpeg's AVERROR(EIO), EIO being 5 on all supported platforms, not exposed by the presets. */
+	private static final int AVERROR_EIO = -5;
+	/** Only one callback is used for all grabbers because the number of native callbacks is limited. */
+	private static final NativeReadCallback NATIVE_READ_CALLBACK = new NativeReadCallback();
+	/** True to grab planar YUV 4:2:0 images if possible, false for packed BGR images. */
+	public static final boolean YUV_FRAMES = !Boolean.getBoolean("webstreamer.bgrFrames");
+	/** Target duration of aggregated audio buffers, in microseconds. */
+	private static final long AUDIO_BUFFER_DURATION = Math.max(20, Math.min(Integer.getInteger("webstreamer.audioBufferDuration", 150), 300)) * 1000L;
+	/** Audio frames that are not contiguous within this number of microseconds start a new buffer. */
+	private static final long AUDIO_GAP_THRESHOLD = 20000L;
+	/** Maximum divisor of the native image size when scaling to a target size. */
+	private static final int MAX_SCALE_DIVISOR = 8;
+	/** Images are never scaled below this height. */
+	private static final int MIN_SCALED_HEIGHT = 90;
+
 	private final DisplayLayerResources pools;
-	private final URI uri;
-	
-	private ByteBuffer buffer;
+	private final InputStream stream;
+
 	private FFmpegFrameGrabber grabber;
-	private long refTimestamp;
-	private long deltaTimestamp;
-	private Frame lastFrame;
-	
+	/** The opaque address of the IO context, if the native read callback is installed. */
+	private long nativeOpaque;
+
+	private final AudioDownmixer audioDownmixer = new AudioDownmixer();
+	/** False if audio streams are discarded. */
+	private boolean audioEnabled = true;
+	/** Mono samples being aggregated, from the start of the buffer to its position. */
 	private ShortBuffer tempAudioBuffer;
-	
-	private ArrayDeque<AudioStreamingBuffer> startAudioBuffers;
-	
-	public FrameGrabber(DisplayLayerResources pools, URI uri) {
+	/** Timestamp of the first aggregated sample, in microseconds. */
+	private long tempAudioTimestamp;
+	/** Sample rate of the aggregated samples. */
+	private int tempAudioSampleRate;
+
+	/** True if images are grabbed as planar YUV 4:2:0, false for packed BGR. */
+	private boolean yuvFrames;
+	/** True if YUV images use the BT.709 matrix, false for the BT.601 one. */
+	private boolean bt709;
+
+	/** Native size of the video, 0 if unknown. */
+	private int nativeWidth, nativeHeight;
+	/** Current divisor of the native size for scaled images. */
+	private int scaleDivisor = 1;
+
+	/**
+	 * Construct a frame grabber for a continuous stream.
+	 * @param pools The resources to get buffers from.
+	 * @param stream The stream to read, it's closed when the grabber is stopped. Seeking
+	 *               is not supported because the stream is never retained.
+	 */
+	public FrameGrabber(DisplayLayerResources pools, InputStream stream) {
 		this.pools = pools;
-		this.uri = uri;
+		this.stream = stream;
 	}
 
 	public void start() throws IOException {
 
-		if (this.grabber != null || this.buffer != null) {
+		if (this.grabber != null) {
 			throw new IllegalStateException("already started");
 		}
-		
-		try {
 
-			HttpRequest req = HttpRequest.newBuilder(this.uri).GET().timeout(Duration.ofSeconds(1)).build();
-			this.buffer = this.pools.allocRawFileBuffer();
-			this.pools.getHttpClient().send(req, info -> new BufferResponseSubscriber(this.buffer));
-			ByteArrayInputStream grabberStream = new ByteArrayInputStream(this.buffer.array(), this.buffer.position(), this.buffer.remaining());
+		try {
 
-			this.grabber = new FFmpegFrameGrabber(grabberStream);
+			// Maximum size of zero disables seeking, so the stream is never retained.
+			this.grabber = new FFmpegFrameGrabber(this.stream, 0);
+			// YUV images can't be rendered without the shader program converting them.
+			this.yuvFrames = YUV_FRAMES && DisplayLayerSimple.isYuvProgramLoaded();
+			if (this.yuvFrames) {
+				this.grabber.setPixelFormat(AV_PIX_FMT_YUV420P);
+			}
 			this.grabber.startUnsafe();
 
+			// The sample format is the decoder's one in raw mode, other formats are
+			// resampled by JavaCV to 16 bits interleaved samples.
+			this.grabber.setSampleMode(org.bytedeco.javacv.FrameGrabber.SampleMode.RAW);
+			int sampleFormat = this.grabber.getSampleFormat();
+			if (sampleFormat != AV_SAMPLE_FMT_S16 && sampleFormat != AV_SAMPLE_FMT_S16P
+					&& sampleFormat != AV_SAMPLE_FMT_FLT && sampleFormat != AV_SAMPLE_FMT_FLTP) {
+				this.grabber.setSampleMode(org.bytedeco.javacv.FrameGrabber.SampleMode.SHORT);
+			}
+
+			if (this.stream instanceof NativeReadable readable) {
+				// Probing has been done through the Java stream, the rest is read natively.
+				AVIOContext pb = this.grabber.getFormatContext().pb();
+				this.nativeOpaque = pb.opaque().address();
+				NATIVE_READABLES.put(this.nativeOpaque, readable);
+				pb.read_packet(NATIVE_READ_CALLBACK);
+			}
+
 			this.tempAudioBuffer = this.pools.allocAudioBuffer();
+			this.tempAudioBuffer.clear();
+
+			// Image size is not yet set, so this is the codec's size.
+			this.nativeWidth = this.grabber.getImageWidth();
+			this.nativeHeight = this.grabber.getImageHeight();
 
-			this.refTimestamp = 0L;
-			this.deltaTimestamp = 0L;
-			this.lastFrame = null;
-			
-			this.startAudioBuffers = new ArrayDeque<>();
-
-			Frame frame;
-			while ((frame = this.grabber.grab()) != null) {
-				if (frame.image != null) {
-					this.refTimestamp = frame.timestamp;
-					this.lastFrame = frame;
+			// The scaler doesn't convert the color space of YUV images, the decoder's one is
+			// given to the shader program. Untagged streams are guessed from their height,
+			// BT.709 for HD and BT.601 for SD.
+			int colorSpace = AVCOL_SPC_UNSPECIFIED;
+			AVFormatContext formatContext = this.grabber.getFormatContext();
+			for (int i = 0; i < formatContext.nb_streams(); ++i) {
+				if (formatContext.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
+					colorSpace = formatContext.streams(i).codecpar().color_space();
 					break;
-				} else if (frame.samples != null) {
-					this.startAudioBuffers.addLast(AudioStreamingBuffer.fromFrame(this.tempAudioBuffer, frame));
 				}
 			}
+			this.bt709 = colorSpace == AVCOL_SPC_BT709 || (colorSpace == AVCOL_SPC_UNSPECIFIED && this.nativeHeight >= 720);
 
-		} catch (IOException | InterruptedException | RuntimeException e) {
+		} catch (IOException | RuntimeException e) {
 
-			if (this.grabber != null) {
-				this.grabber.releaseUnsafe();
+			if (this.nativeOpaque != 0) {
+				NATIVE_READABLES.remove(this.nativeOpaque);
+				this.nativeOpaque = 0;
 			}
 
-			if (this.buffer != null) {
-				this.pools.freeRawFileBuffer(this.buffer);
-				this.buffer = null;
+			if (this.grabber != null) {
+				this.grabber.releaseUnsafe();
+				this.grabber = null;
 			}
 
 			if (this.tempAudioBuffer != null) {
@@ -101,13 +184,8 @@ public class FrameGrabber {
 				this.tempAudioBuffer = null;
 			}
 
-			if (e instanceof InterruptedException) {
-				throw new IOException(e);
-			} else if (e instanceof IOException) {
-				throw (IOException) e;
-			} else {
-				throw (RuntimeException) e;
-			}
+			this.stream.close();
+			throw e;
 
 		}
 
@@ -115,144 +193,223 @@ public class FrameGrabber {
 
 	public void stop() {
 
-		if (this.grabber == null || this.buffer == null || this.tempAudioBuffer == null) {
+		if (this.grabber == null || this.tempAudioBuffer == null) {
 			throw new IllegalStateException("Frame grabber is not started.");
 		}
-		
+
+		if (this.nativeOpaque != 0) {
+			NATIVE_READABLES.remove(this.nativeOpaque);
+			this.nativeOpaque = 0;
+		}
+
 		try {
 			this.grabber.releaseUnsafe();
 		} catch (IOException ignored) { }
-		
-		this.pools.freeRawFileBuffer(this.buffer);
+
+		try {
+			this.stream.close();
+		} catch (IOException ignored) { }
+
 		this.pools.freeAudioBuffer(this.tempAudioBuffer);
-		
-		this.buffer = null;
+
 		this.grabber = null;
 		this.tempAudioBuffer = null;
-		
-		if (this.startAudioBuffers != null) {
-			this.startAudioBuffers.forEach(AudioStreamingBuffer::free);
-			this.startAudioBuffers = null;
-		}
 
 	}
 
 	/**
-	 * Grab the image frame at the corresponding timestamp, the grabber will attempt
-	 * to get the closest frame before timestamp.
-	 * @param timestamp The relative timestamp in microseconds. Relative to the first image frame
-	 * @param audioBufferConsumer A consumer for audio buffers decoded during image frame selection.
-	 * @return The grabbed frame or null if frame has not updated since last grab.
+	 * @return True if images are grabbed as planar YUV 4:2:0, false for packed BGR, only
+	 * valid once started.
 	 */
-	public Frame grabAt(long timestamp, Consumer<AudioStreamingBuffer> audioBufferConsumer) throws IOException {
+	public boolean isYuvFrames() {
+		return this.yuvFrames;
+	}
 
-		if (this.startAudioBuffers != null) {
-			// Called once after start with audio buffers placed before the first frame.
-			this.startAudioBuffers.forEach(audioBufferConsumer);
-			this.startAudioBuffers = null;
-		}
-		
-		long realTimestamp = timestamp + this.refTimestamp;
-		
-		if (this.lastFrame != null) {
-			if (this.lastFrame.timestamp <= realTimestamp) {
-				Frame frame = this.lastFrame;
-				this.lastFrame = null;
-				return frame;
-			} else {
-				return null;
+	/**
+	 * @return True if YUV images must be converted with the BT.709 matrix, false for the
+	 * BT.601 one, only valid once started.
+	 */
+	public boolean isBt709() {
+		return this.bt709;
+	}
+
+	/**
+	 * Enable or disable audio, disabled audio streams are discarded by the demuxer so
+	 * their packets are never decoded, samples being aggregated are dropped.
+	 * @param enabled False to discard audio.
+	 */
+	public void setAudioEnabled(boolean enabled) {
+		if (enabled != this.audioEnabled) {
+			this.audioEnabled = enabled;
+			AVFormatContext formatContext = this.grabber.getFormatContext();
+			for (int i = 0; i < formatContext.nb_streams(); ++i) {
+				if (formatContext.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_AUDIO) {
+					formatContext.streams(i).discard(enabled ? AVDISCARD_DEFAULT : AVDISCARD_ALL);
+				}
+			}
+			if (!enabled) {
+				this.tempAudioBuffer.clear();
 			}
 		}
-		
-		Frame frame;
-		while ((frame = this.grabber.grab()) != null) {
-			if (frame.image != null) {
+	}
 
-				if (this.deltaTimestamp == 0) {
-					this.deltaTimestamp = frame.timestamp - this.refTimestamp;
-				}
+	/**
+	 * <p>Set the target size of the next image frames, images are scaled down to the
+	 * smallest size that is still larger than the target, this is done by FFmpeg's scaler
+	 * that already copies the YUV planes, or converts images to BGR, so it costs nothing
+	 * more.</p>
+	 * <p>Scaled sizes are the native size divided by a power of two, so that the scaler
+	 * is only recreated when crossing one of these few buckets.</p>
+	 * @param width The target width in pixels, 0 for the native size.
+	 * @param height The target height in pixels, 0 for the native size.
+	 */
+	public void setTargetSize(int width, int height) {
 
-				if (frame.timestamp <= realTimestamp) {
-					// Delta of the current frame with the targeted timestamp
-					long delta = realTimestamp - frame.timestamp;
-					if (delta <= this.deltaTimestamp) {
-						return frame;
-					}
-				} else {
-					this.lastFrame = frame;
+		if (this.nativeWidth <= 0 || this.nativeHeight <= 0) {
+			return;
+		}
+
+		int divisor = 1;
+		if (width > 0 && height > 0) {
+			while (divisor < MAX_SCALE_DIVISOR) {
+				int nextDivisor = divisor * 2;
+				int nextHeight = this.nativeHeight / nextDivisor;
+				if (this.nativeWidth / nextDivisor < width || nextHeight < height || nextHeight < MIN_SCALED_HEIGHT) {
 					break;
 				}
-
-			} else if (frame.samples != null) {
-				audioBufferConsumer.accept(AudioStreamingBuffer.fromFrame(this.tempAudioBuffer, frame));
+				divisor = nextDivisor;
 			}
 		}
 
-		return null;
+		if (divisor != this.scaleDivisor) {
+			this.scaleDivisor = divisor;
+			// Zero size is the native one, scaled sizes are even for chroma subsampling.
+			this.grabber.setImageWidth(divisor == 1 ? 0 : (this.nativeWidth / divisor) & ~1);
+			this.grabber.setImageHeight(divisor == 1 ? 0 : (this.nativeHeight / divisor) & ~1);
+		}
 
 	}
 
-	public void grabRemaining(Consumer<AudioStreamingBuffer> audioBufferConsumer) throws IOException {
+	/**
+	 * Grab the next image frame in decoding order, audio frames decoded before it are given
+	 * to the audio consumer, once aggregated. This is called from the layer's
+	 * {@link FrameDecoder} thread.
+	 * @param audioBufferConsumer A consumer for audio buffers decoded before the image frame.
+	 * @param doVideo False to skip video packets without decoding them, in such case the
+	 *                audio frame is returned, after being given to the consumer.
+	 * @param keyFrames True to skip video packets that are not key frames, without decoding
+	 *                  them, the returned image frame is therefore a key frame.
+	 * @return The next image frame, or audio frame if video is skipped, or null if the end
+	 * of the stream has been reached. The returned frame is reused by the grabber and is
+	 * only valid until the next grab.
+	 */
+	public Frame grabNext(Consumer<AudioStreamingBuffer> audioBufferConsumer, boolean doVideo, boolean keyFrames) throws IOException {
 		Frame frame;
-		while ((frame = this.grabber.grab()) != null) {
-			if (frame.samples != null) {
-				audioBufferConsumer.accept(AudioStreamingBuffer.fromFrame(this.tempAudioBuffer, frame));
+		while ((frame = this.grabber.grabFrame(this.audioEnabled, doVideo, true, keyFrames, false)) != null) {
+			if (frame.image != null) {
+				return frame;
+			} else if (frame.samples != null) {
+				this.pushAudio(frame, audioBufferConsumer);
+				if (!doVideo) {
+					return frame;
+				}
 			}
 		}
+		// Aggregated samples are not followed by anything.
+		this.flushAudio(audioBufferConsumer);
+		return null;
 	}
-	
+
 	/**
-	 * Internal class that serves as an HTTP response subscriber that fills a given {@link ByteBuffer}.
-	 * The buffer is automatically rewinded before pushing data into it.
+	 * Aggregate the samples of the given audio frame, the aggregated buffer is given to the
+	 * consumer when it reaches the target duration or when the frame doesn't follow it.
 	 */
-	private static class BufferResponseSubscriber implements HttpResponse.BodySubscriber<Object> {
-		
-		private final CompletableFuture<Object> future = new CompletableFuture<>();
-		private final ByteBuffer buffer;
-		private Flow.Subscription subscription;
-		
-		public BufferResponseSubscriber(ByteBuffer buffer) {
-			this.buffer = buffer;
-		}
-		
-		@Override
-		public CompletionStage<Object> getBody() {
-			return this.future;
+	private void pushAudio(Frame frame, Consumer<AudioStreamingBuffer> audioBufferConsumer) {
+
+		int channels = frame.audioChannels;
+		if (channels < 1) {
+			// Samples can't be read without a channel count, the frame is skipped.
+			return;
 		}
-		
-		@Override
-		public void onSubscribe(Flow.Subscription subscription) {
-			if (this.subscription != null) {
-				this.subscription.cancel();
+
+		ShortBuffer buffer = this.tempAudioBuffer;
+		int samples = AudioDownmixer.getSampleCount(frame.samples, channels);
+
+		if (buffer.position() > 0) {
+			long expectedTimestamp = this.tempAudioTimestamp + buffer.position() * 1000000L / this.tempAudioSampleRate;
+			if (frame.sampleRate != this.tempAudioSampleRate
+					|| Math.abs(frame.timestamp - expectedTimestamp) > AUDIO_GAP_THRESHOLD
+					|| samples > buffer.remaining()) {
+				this.flushAudio(audioBufferConsumer);
 			}
-			this.subscription = subscription;
-			this.subscription.request(Long.MAX_VALUE);
-			this.buffer.clear();
 		}
-		
-		@Override
-		public void onNext(List<ByteBuffer> item) {
-			for (ByteBuffer buf : item) {
-				try {
-					this.buffer.put(buf);
-				} catch (BufferOverflowException e) {
-					WebStreamerMod.LOGGER.error("Cannot fill the full raw file buffer because of overflow. current pos: {}, incoming buf: {}", this.buffer.position(), buf.remaining());
-					this.future.completeExceptionally(e);
-				}
-			}
+
+		if (buffer.position() == 0) {
+			this.tempAudioTimestamp = frame.timestamp;
+			this.tempAudioSampleRate = frame.sampleRate;
 		}
-		
-		@Override
-		public void onError(Throwable throwable) {
-			this.future.completeExceptionally(throwable);
+
+		this.audioDownmixer.convert(buffer, frame.samples, channels);
+
+		if (buffer.position() * 1000000L / this.tempAudioSampleRate >= AUDIO_BUFFER_DURATION) {
+			this.flushAudio(audioBufferConsumer);
+		}
+
+	}
+
+	/**
+	 * Give the aggregated samples, if any, to the consumer as a single audio buffer.
+	 */
+	private void flushAudio(Consumer<AudioStreamingBuffer> audioBufferConsumer) {
+		ShortBuffer buffer = this.tempAudioBuffer;
+		if (buffer.position() > 0) {
+			buffer.flip();
+			audioBufferConsumer.accept(AudioStreamingBuffer.fromMonoData(buffer, this.tempAudioSampleRate, this.tempAudioTimestamp));
+			buffer.clear();
 		}
-		
+	}
+
+	/**
+	 * An input stream that can also be read directly to native memory.
+	 */
+	public interface NativeReadable {
+
+		/**
+		 * Read bytes directly to native memory, blocking until at least one byte is read.
+		 * @param address The native address to write to.
+		 * @param len The maximum number of bytes to write.
+		 * @return The number of bytes read, or -1 if the end of the stream is reached.
+		 */
+		int read(long address, int len) throws IOException;
+
+	}
+
+	/**
+	 * Internal read callback for IO contexts that forwards to the native readable stream
+	 * of the grabber, without any Java copy. Only the end of the stream is reported as
+	 * end of file, read errors are reported as IO errors so that the grabber fails
+	 * instead of silently ending the stream.
+	 */
+	private static class NativeReadCallback extends AVIOContext.Read_packet_Pointer_BytePointer_int {
+
 		@Override
-		public void onComplete() {
-			this.buffer.flip();
-			this.future.complete(null);
+		public int call(Pointer opaque, BytePointer buf, int bufSize) {
+			NativeReadable readable = NATIVE_READABLES.get(opaque.address());
+			if (readable == null) {
+				return AVERROR_EIO;
+			}
+			try {
+				int read = readable.read(buf.address(), bufSize);
+				return read < 0 ? AVERROR_EOF() : read;
+			} catch (InterruptedIOException e) {
+				// The interrupt is restored for the decoder to stop once FFmpeg returns.
+				Thread.currentThread().interrupt();
+				return AVERROR_EXIT();
+			} catch (IOException | RuntimeException e) {
+				return AVERROR_EIO;
+			}
 		}
-		
+
 	}
 
 }
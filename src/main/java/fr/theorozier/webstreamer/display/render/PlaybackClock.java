@@ -0,0 +1,113 @@
+package fr.theorozier.webstreamer.display.render;
+
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+/**
+ * <p>The playback clock of a {@link DisplayLayerHls}, it tells how much the playback
+ * should advance for the wall-clock time elapsed. When audio is playing, the audio
+ * position is the master and the clock follows it: the drift between the playback
+ * timestamp and the audio position is smoothed and corrected by slightly speeding up
+ * or slowing down the playback, without any jump. Only drifts too large to be corrected
+ * this way are reported to be corrected by the caller.</p>
+ * <p>Without audio, the clock simply runs at the wall-clock rate.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class PlaybackClock {
+
+	/** Drifts below this number of microseconds are not corrected. */
+	private static final long DRIFT_DEAD_ZONE = 15000L;
+	/** Drifts above this number of microseconds are corrected by the caller. */
+	private static final long DRIFT_HARD_THRESHOLD = 1000000L;
+	/** Approximate time in microseconds to correct a drift through the rate. */
+	private static final double DRIFT_CORRECTION_TIME = 2000000.0;
+	/** Maximum deviation of the rate from 1, small enough to be unnoticeable. */
+	private static final double MAX_RATE_ADJUSTMENT = 0.05;
+	/** Smoothing factor of the drift, audio positions are only precise to a few milliseconds. */
+	private static final double DRIFT_SMOOTHING = 0.1;
+
+	/** Current rate of the playback relative to the wall-clock. */
+	private double rate = 1.0;
+	/** Smoothed drift in microseconds, positive if the audio is ahead of the playback. */
+	private double drift = 0.0;
+	/** True if the drift has been measured since audio started playing. */
+	private boolean synced = false;
+
+	/** Largest absolute smoothed drift since startup, in microseconds. */
+	private long maxDrift = 0;
+	/** Number of drifts that were too large to be corrected through the rate. */
+	private long hardCorrections = 0;
+
+	/**
+	 * @param elapsed The wall-clock time elapsed, in microseconds.
+	 * @return The time the playback should advance, in microseconds.
+	 */
+	public long advance(long elapsed) {
+		return (long) (elapsed * this.rate);
+	}
+
+	/**
+	 * Measure the drift between the playback and the audio, and adjust the rate.
+	 * @param playbackTimestamp The current playback timestamp, in microseconds.
+	 * @param audioTimestamp The timestamp of the audio being played, in microseconds,
+	 *                       or -1 if no audio is playing, the rate is then reset.
+	 * @return The drift in microseconds that is too large to be corrected through the
+	 * rate, positive if the audio is ahead of the playback, 0 if none.
+	 */
+	public long sync(long playbackTimestamp, long audioTimestamp) {
+
+		if (audioTimestamp < 0) {
+			this.rate = 1.0;
+			this.drift = 0.0;
+			this.synced = false;
+			return 0;
+		}
+
+		long drift = audioTimestamp - playbackTimestamp;
+		if (Math.abs(drift) >= DRIFT_HARD_THRESHOLD) {
+			this.hardCorrections++;
+			this.rate = 1.0;
+			this.drift = 0.0;
+			this.synced = false;
+			return drift;
+		}
+
+		if (this.synced) {
+			this.drift += (drift - this.drift) * DRIFT_SMOOTHING;
+		} else {
+			this.drift = drift;
+			this.synced = true;
+		}
+
+		this.maxDrift = Math.max(this.maxDrift, (long) Math.abs(this.drift));
+
+		if (Math.abs(this.drift) < DRIFT_DEAD_ZONE) {
+			this.rate = 1.0;
+		} else {
+			double adjustment = this.drift / DRIFT_CORRECTION_TIME;
+			this.rate = 1.0 + Math.max(-MAX_RATE_ADJUSTMENT, Math.min(MAX_RATE_ADJUSTMENT, adjustment));
+		}
+
+		return 0;
+
+	}
+
+	/**
+	 * @return A snapshot of the clock synchronization.
+	 */
+	public PlaybackClockStats getStats() {
+		return new PlaybackClockStats(this.synced, this.rate, (long) this.drift, this.maxDrift, this.hardCorrections);
+	}
+
+	/**
+	 * Synchronization of a playback clock with its audio.
+	 * @param synced True if the clock currently follows the audio.
+	 * @param rate The current rate of the playback relative to the wall-clock.
+	 * @param drift The smoothed drift in microseconds, positive if the audio is ahead.
+	 * @param maxDrift The largest absolute smoothed drift since startup, in microseconds.
+	 * @param hardCorrections The number of drifts that were too large to be corrected
+	 *                        through the rate since startup.
+	 */
+	public record PlaybackClockStats(boolean synced, double rate, long drift, long maxDrift, long hardCorrections) { }
+
+}
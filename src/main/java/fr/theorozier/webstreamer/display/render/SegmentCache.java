@@ -0,0 +1,225 @@
+package fr.theorozier.webstreamer.display.render;
+
+import fr.theorozier.webstreamer.WebStreamerMod;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>A least recently used cache of segment data, shared by all layers through
+ * {@link DisplayLayerResources} and keyed by resolved segment URI. Segments requested
+ * again after a layer's reset, or by a layer recreated for the same source, are not
+ * downloaded again.</p>
+ * <p>Concurrent requests for the same URI share a single download, the later requests
+ * get the same data as soon as the first one has started it.</p>
+ * <p>The cache is bounded by the native memory held by its segments, the cache holds
+ * its own reference to each segment data, so evicted segments remain readable by their
+ * current inputs. Segments that are not read can also be released early when the raw
+ * file buffers budget is exceeded, see {@link #reclaim}.</p>
+ * <p>Requests can be cancelled through their future, a cancelled request that started a
+ * download removes it from the cache, so the download is aborted and its buffer freed
+ * as soon as no other request holds it.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class SegmentCache {
+
+	/** Limit to 64 Mio of cached segments, this is below raw file buffers budget. */
+	private static final long CACHE_BUDGET = 64L << 20;
+
+	private final DisplayLayerResources pools;
+	/** Cached segments, in access order. */
+	private final LinkedHashMap<URI, SegmentData> segments = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long hitCount = 0;
+	private long missCount = 0;
+	/** Number of segments released to make room in the raw file buffers budget. */
+	private long reclaimCount = 0;
+
+	public SegmentCache(DisplayLayerResources pools) {
+		this.pools = pools;
+	}
+
+	/**
+	 * Request a segment, from the cache if present, or by downloading it, this doesn't
+	 * block, see {@link SegmentData#downloadAsync}.
+	 * @param uri The resolved segment URI.
+	 * @param streaming True to complete with the segment while it's being downloaded.
+	 * @param executor The executor used to wait for buffers, if needed.
+	 * @return A future completed with a new input for the segment, to be released when
+	 * no longer used, or completed exceptionally with an {@link IOException}. The future
+	 * can be cancelled if the segment is no longer needed.
+	 */
+	public CompletableFuture<SegmentInput> requestAsync(URI uri, boolean streaming, Executor executor) {
+
+		SegmentData data;
+		boolean hit;
+
+		synchronized (this.segments) {
+			data = this.segments.get(uri);
+			if (data != null && !data.isFailed() && data.retain()) {
+				this.hitCount++;
+				hit = true;
+			} else {
+				this.missCount++;
+				hit = false;
+				// The cache owns the first reference, the second one is for the input.
+				data = new SegmentData(this.pools);
+				data.retain();
+				SegmentData previous = this.segments.put(uri, data);
+				if (previous != null) {
+					previous.release();
+				}
+			}
+		}
+
+		SegmentInput input = new SegmentInput(data, hit);
+		SegmentData requestedData = data;
+
+		CompletableFuture<?> ready;
+		if (hit) {
+			ready = streaming ? CompletableFuture.completedFuture(null) : data.getCompletion().toCompletableFuture();
+		} else {
+			ready = data.downloadAsync(uri, streaming, executor);
+		}
+
+		CompletableFuture<SegmentInput> result = new CompletableFuture<>();
+
+		// Only one of the completion or the cancellation releases the input.
+		ready.whenComplete((ignored, e) -> {
+			if (e != null) {
+				this.remove(uri, requestedData);
+				Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				if (result.completeExceptionally(cause)) {
+					input.release();
+				}
+			} else {
+				this.evict();
+				result.complete(input);
+			}
+		});
+
+		result.whenComplete((ignored, e) -> {
+			if (result.isCancelled()) {
+				this.pools.recordCancelled(DisplayLayerResources.CancelledTask.SEGMENT_REQUEST);
+				input.release();
+				// Nobody may need a download that is not complete, unless it has been
+				// requested again meanwhile, in such case it holds its own reference.
+				if (!hit && !requestedData.isComplete()) {
+					this.remove(uri, requestedData);
+				}
+			}
+		});
+
+		return result;
+
+	}
+
+	/**
+	 * Remove the given data from the cache, if still cached for the given URI.
+	 */
+	private void remove(URI uri, SegmentData data) {
+		synchronized (this.segments) {
+			if (this.segments.remove(uri, data)) {
+				data.release();
+			}
+		}
+	}
+
+	/**
+	 * Evict the least recently used segments until the cache is within its budget. The
+	 * weight of segments is recomputed because segments grow while being downloaded.
+	 */
+	private void evict() {
+
+		List<SegmentData> evicted = new ArrayList<>();
+
+		synchronized (this.segments) {
+			long weight = 0;
+			for (SegmentData data : this.segments.values()) {
+				weight += data.getWeight();
+			}
+			Iterator<Map.Entry<URI, SegmentData>> it = this.segments.entrySet().iterator();
+			while (weight > CACHE_BUDGET && it.hasNext()) {
+				SegmentData data = it.next().getValue();
+				weight -= data.getWeight();
+				evicted.add(data);
+				it.remove();
+			}
+		}
+
+		if (!evicted.isEmpty()) {
+			WebStreamerMod.LOGGER.debug("Evicted {} segments from cache.", evicted.size());
+			evicted.forEach(SegmentData::release);
+		}
+
+	}
+
+	/**
+	 * Release cached segments that are not read by any input, least recently used first,
+	 * until the given number of bytes is released, in order to make room in the raw file
+	 * buffers budget. This must not be called with the lock of a segment data held.
+	 * @param bytes The number of bytes to release.
+	 * @return The number of bytes released.
+	 */
+	public long reclaim(long bytes) {
+
+		List<SegmentData> reclaimed = new ArrayList<>();
+		long weight = 0;
+
+		synchronized (this.segments) {
+			Iterator<SegmentData> it = this.segments.values().iterator();
+			while (weight < bytes && it.hasNext()) {
+				SegmentData data = it.next();
+				if (data.isUnshared()) {
+					weight += data.getWeight();
+					reclaimed.add(data);
+					it.remove();
+				}
+			}
+			this.reclaimCount += reclaimed.size();
+		}
+
+		if (!reclaimed.isEmpty()) {
+			WebStreamerMod.LOGGER.debug("Reclaimed {} segments from cache for {} bytes.", reclaimed.size(), weight);
+			reclaimed.forEach(SegmentData::release);
+		}
+
+		return weight;
+
+	}
+
+	/**
+	 * @return A snapshot of the cache statistics.
+	 */
+	public SegmentCacheStats getStats() {
+		synchronized (this.segments) {
+			long weight = 0;
+			for (SegmentData data : this.segments.values()) {
+				weight += data.getWeight();
+			}
+			return new SegmentCacheStats(this.segments.size(), weight, CACHE_BUDGET, this.hitCount, this.missCount, this.reclaimCount);
+		}
+	}
+
+	/**
+	 * Statistics of the segment cache.
+	 * @param count The number of cached segments.
+	 * @param weight The number of bytes held by cached segments.
+	 * @param budget The maximum number of bytes held by cached segments.
+	 * @param hits The number of requests served from the cache since startup.
+	 * @param misses The number of requests that started a download since startup.
+	 * @param reclaimed The number of segments released for the raw file buffers budget since startup.
+	 */
+	public record SegmentCacheStats(int count, long weight, long budget, long hits, long misses, long reclaimed) { }
+
+}
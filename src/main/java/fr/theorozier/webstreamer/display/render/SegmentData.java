@@ -0,0 +1,486 @@
+package fr.theorozier.webstreamer.display.render;
+
+import fr.theorozier.webstreamer.util.CancellationToken;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+/**
+ * <p>The body of a single HLS segment, downloaded or being downloaded straight into a
+ * pooled direct raw file buffer. The same data can be read concurrently by multiple
+ * {@link SegmentInput}, each with its own position, and is shared through the
+ * {@link SegmentCache}.</p>
+ * <p>The download is asynchronous, no thread is blocked while waiting for the network.
+ * In buffered mode, the download completes once the whole segment is downloaded. In
+ * streaming mode, it completes as soon as headers are received and reads are blocking
+ * until the requested bytes are received.</p>
+ * <p>The raw file buffer is first allocated with a small size class, it's then grown
+ * to the announced content length, or to the next size class when full. The body is
+ * requested part by part, when the budget of raw file buffers doesn't allow growing
+ * immediately, the body is held back while the buffer is allocated on the executor,
+ * where waiting for the budget is allowed.</p>
+ * <p>This data is reference counted, its buffer is released and its download cancelled
+ * when the last reference is released, including the HTTP exchange if the response has
+ * not been received yet.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class SegmentData {
+
+	/** Initial size of the raw file buffer, before knowing the content length, 1 Mio. */
+	private static final int INITIAL_BUFFER_SIZE = 1 << 20;
+	/** Interval in milliseconds for readers to check for cancellation while waiting. */
+	private static final long CANCEL_CHECK_INTERVAL = 50L;
+
+	private final DisplayLayerResources pools;
+
+	/** The executor used to wait for the raw file buffers budget. */
+	private Executor executor;
+	private ByteBuffer buffer;
+	private Flow.Subscription subscription;
+	/** The HTTP exchange, cancelled if this data is released before completion. */
+	private CompletableFuture<HttpResponse<Void>> exchange;
+	/** Number of bytes received in the buffer. */
+	private int size;
+	private int references = 1;
+	private boolean complete;
+	private boolean released;
+	private Throwable error;
+	/** Time in nanoseconds (monotonic) of the download start. */
+	private long downloadStart;
+	/** Duration of the whole download in nanoseconds, -1 if not complete. */
+	private long downloadTime = -1;
+	private final CompletableFuture<SegmentData> completion = new CompletableFuture<>();
+
+	/**
+	 * Construct an empty segment data with one reference, {@link #downloadAsync} should
+	 * then be called by the owner of this reference.
+	 * @param pools The resources to get buffers and HTTP client from.
+	 */
+	public SegmentData(DisplayLayerResources pools) {
+		this.pools = pools;
+	}
+
+	/**
+	 * Start downloading the segment. Concurrent readers are given the error if the
+	 * download fails.
+	 * @param uri The segment URI.
+	 * @param streaming True to complete while the segment is being downloaded.
+	 * @param executor The executor used to wait for the raw file buffers budget, only if
+	 *                 it's not immediately available, before and during the download.
+	 * @return A future completed once the segment is fully downloaded in buffered mode,
+	 * or once response headers are received in streaming mode, or completed exceptionally
+	 * with an {@link IOException} if the download fails.
+	 */
+	public CompletableFuture<Void> downloadAsync(URI uri, boolean streaming, Executor executor) {
+
+		this.executor = executor;
+
+		CompletableFuture<ByteBuffer> buffer = null;
+		try {
+			ByteBuffer initialBuffer = this.pools.tryAllocRawFileBuffer(INITIAL_BUFFER_SIZE);
+			if (initialBuffer != null) {
+				buffer = CompletableFuture.completedFuture(initialBuffer);
+			}
+		} catch (IOException e) {
+			buffer = CompletableFuture.failedFuture(e);
+		}
+
+		if (buffer == null) {
+			// The budget is exceeded, wait for it without blocking the caller.
+			buffer = CompletableFuture.supplyAsync(() -> {
+				try {
+					return this.pools.allocRawFileBuffer(INITIAL_BUFFER_SIZE, true);
+				} catch (IOException e1) {
+					throw new CompletionException(e1);
+				}
+			}, executor);
+		}
+
+		return buffer.thenCompose(buf -> {
+
+			synchronized (this) {
+				if (this.released) {
+					this.pools.freeRawFileBuffer(buf);
+					throw new CompletionException(new IOException("segment data released"));
+				}
+				this.buffer = buf;
+				this.downloadStart = System.nanoTime();
+			}
+
+			HttpRequest req = HttpRequest.newBuilder(uri).GET().timeout(Duration.ofSeconds(1)).build();
+			CompletableFuture<HttpResponse<Void>> exchange = this.pools.getHttpClient().sendAsync(req, info -> {
+				long length = info.headers().firstValueAsLong("Content-Length").orElse(-1);
+				return new BufferResponseSubscriber(streaming, length);
+			});
+			
+			synchronized (this) {
+				if (this.released) {
+					exchange.cancel(true);
+				} else {
+					this.exchange = exchange;
+				}
+			}
+			
+			return exchange;
+
+		}).handle((res, e) -> {
+
+			if (e == null && res.statusCode() != 200) {
+				e = new IOException("HTTP request failed, status code: " + res.statusCode());
+			}
+
+			if (e == null) {
+				return null;
+			}
+
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			IOException error = cause instanceof IOException ioe ? ioe : new IOException(cause);
+
+			synchronized (this) {
+				if (this.error == null) {
+					this.error = error;
+				}
+				if (this.subscription != null && !this.complete) {
+					this.subscription.cancel();
+				}
+				this.notifyAll();
+			}
+
+			this.completion.completeExceptionally(error);
+			throw new CompletionException(error);
+
+		});
+
+	}
+
+	private void checkReadable() throws IOException {
+		if (this.released) {
+			throw new IOException("segment data released");
+		} else if (this.error != null) {
+			throw new IOException(this.error);
+		}
+	}
+
+	/**
+	 * Wait for bytes to be available to read at the given position.
+	 * @return The number of bytes available, or 0 if the end of the segment is reached.
+	 * @throws IOException If the data is not readable or if the read is cancelled.
+	 */
+	private int waitAvailable(int position, CancellationToken token) throws IOException {
+		while (position >= this.size) {
+			this.checkReadable();
+			if (this.complete) {
+				return 0;
+			} else if (token.isCancelled()) {
+				throw new IOException("segment read cancelled");
+			}
+			try {
+				this.wait(CANCEL_CHECK_INTERVAL);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+		return this.size - position;
+	}
+
+	/**
+	 * Read bytes from the segment at the given position, blocking until at least one
+	 * byte is available or until the read is cancelled.
+	 * @param token The token cancelling the wait for bytes.
+	 * @return The number of bytes read, or -1 if the end of the segment is reached.
+	 */
+	public synchronized int read(int position, byte[] b, int off, int len, CancellationToken token) throws IOException {
+		Objects.checkFromIndexSize(off, len, b.length);
+		int count = Math.min(len, this.waitAvailable(position, token));
+		if (count == 0) {
+			return len == 0 ? 0 : -1;
+		}
+		this.buffer.get(position, b, off, count);
+		return count;
+	}
+
+	/**
+	 * Read bytes from the segment at the given position directly to native memory,
+	 * blocking until at least one byte is available or until the read is cancelled.
+	 * @param address The native address to write to.
+	 * @param len The maximum number of bytes to write.
+	 * @param token The token cancelling the wait for bytes.
+	 * @return The number of bytes read, or -1 if the end of the segment is reached.
+	 */
+	public synchronized int read(int position, long address, int len, CancellationToken token) throws IOException {
+		int count = Math.min(len, this.waitAvailable(position, token));
+		if (count == 0) {
+			return len == 0 ? 0 : -1;
+		}
+		MemoryUtil.memCopy(MemoryUtil.memAddress(this.buffer, position), address, count);
+		return count;
+	}
+
+	/**
+	 * @return A stage completed when the segment is fully downloaded, or completed
+	 * exceptionally if the download fails.
+	 */
+	public CompletionStage<SegmentData> getCompletion() {
+		return this.completion;
+	}
+
+	/**
+	 * @return The number of bytes received.
+	 */
+	public synchronized int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return The duration of the whole download in nanoseconds, from the request to the
+	 * last byte received, -1 if not complete.
+	 */
+	public synchronized long getDownloadTime() {
+		return this.downloadTime;
+	}
+
+	/**
+	 * @return True if this segment is fully downloaded.
+	 */
+	public synchronized boolean isComplete() {
+		return this.complete;
+	}
+
+	/**
+	 * @return True if the download of this segment has failed.
+	 */
+	public synchronized boolean isFailed() {
+		return this.error != null;
+	}
+
+	/**
+	 * @return The number of bytes of native memory held by this segment.
+	 */
+	public synchronized int getWeight() {
+		return this.buffer == null ? 0 : this.buffer.capacity();
+	}
+
+	/**
+	 * @return True if a single reference to this data is held, for cached data this is
+	 * the reference of the cache, so no input reads it.
+	 */
+	public synchronized boolean isUnshared() {
+		return !this.released && this.references == 1;
+	}
+
+	/**
+	 * Acquire a new reference to this data.
+	 * @return False if this data has already been released.
+	 */
+	public synchronized boolean retain() {
+		if (this.released) {
+			return false;
+		}
+		this.references++;
+		return true;
+	}
+
+	/**
+	 * Release a reference to this data, when the last one is released, the buffer is
+	 * freed at once and the download is aborted if still running.
+	 */
+	public synchronized void release() {
+		if (!this.released && --this.references == 0) {
+			this.released = true;
+			if (!this.complete && this.error == null) {
+				this.pools.recordCancelled(DisplayLayerResources.CancelledTask.SEGMENT_DOWNLOAD);
+				if (this.subscription != null) {
+					this.subscription.cancel();
+				}
+				if (this.exchange != null) {
+					this.exchange.cancel(true);
+				}
+			}
+			if (this.buffer != null) {
+				this.pools.freeRawFileBuffer(this.buffer);
+				this.buffer = null;
+			}
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * @return The capacity of the raw file buffer grown to hold the given size.
+	 */
+	private int getGrowCapacity(long capacity) throws IOException {
+		if (capacity > Integer.MAX_VALUE) {
+			throw new IOException("segment of " + capacity + " bytes is too large");
+		}
+		return (int) Math.max(capacity, Math.min((long) this.buffer.capacity() << 1, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Replace the raw file buffer by a larger one, received bytes are copied to it.
+	 */
+	private void growBuffer(ByteBuffer newBuffer) {
+		if (newBuffer.capacity() <= this.buffer.capacity()) {
+			this.pools.freeRawFileBuffer(newBuffer);
+			return;
+		}
+		MemoryUtil.memCopy(MemoryUtil.memAddress(this.buffer), MemoryUtil.memAddress(newBuffer), this.size);
+		this.pools.freeRawFileBuffer(this.buffer);
+		this.buffer = newBuffer;
+	}
+
+	/**
+	 * Internal class that serves as an HTTP response subscriber that fills the raw file
+	 * buffer of this data, the body can be completed as soon as the subscription starts
+	 * or only once the whole response is received.
+	 */
+	private class BufferResponseSubscriber implements HttpResponse.BodySubscriber<Void> {
+
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		/** The announced content length, or -1 if unknown. */
+		private final long length;
+
+		private BufferResponseSubscriber(boolean streaming, long length) {
+			this.length = length;
+			if (streaming) {
+				this.future.complete(null);
+			}
+		}
+
+		@Override
+		public CompletionStage<Void> getBody() {
+			return this.future;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			synchronized (SegmentData.this) {
+				if (SegmentData.this.subscription != null || released) {
+					subscription.cancel();
+					return;
+				}
+				SegmentData.this.subscription = subscription;
+				// The announced size is reserved before requesting the body.
+				if (this.length > 0 && !this.ensureCapacity(this.length, List.of())) {
+					return;
+				}
+			}
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> item) {
+			this.receive(item);
+		}
+
+		/**
+		 * Copy the received buffers to the raw file buffer and request the next part of
+		 * the body, unless the raw file buffer must first be grown asynchronously.
+		 */
+		private void receive(List<ByteBuffer> item) {
+			synchronized (SegmentData.this) {
+				if (released) {
+					return;
+				}
+				for (int i = 0; i < item.size(); i++) {
+					ByteBuffer buf = item.get(i);
+					int count = buf.remaining();
+					if (!this.ensureCapacity((long) size + count, item.subList(i, item.size()))) {
+						SegmentData.this.notifyAll();
+						return;
+					}
+					buffer.put(size, buf, buf.position(), count);
+					size += count;
+				}
+				SegmentData.this.notifyAll();
+			}
+			subscription.request(1);
+		}
+
+		/**
+		 * Grow the raw file buffer if it cannot hold the given size. This never waits for
+		 * the budget because it's called from the HTTP client threads, if the budget is not
+		 * immediately available, the buffer is grown on the executor and the pending
+		 * buffers are then received. The lock must be held.
+		 * @param pending The received buffers not yet copied, starting with the one that
+		 *                needs the given size.
+		 * @return True if the buffer can hold the given size, false if it's grown
+		 * asynchronously or if the download has failed.
+		 */
+		private boolean ensureCapacity(long capacity, List<ByteBuffer> pending) {
+			if (capacity <= buffer.capacity()) {
+				return true;
+			}
+			int newCapacity;
+			try {
+				newCapacity = getGrowCapacity(capacity);
+				ByteBuffer newBuffer = pools.tryAllocRawFileBuffer(newCapacity);
+				if (newBuffer != null) {
+					growBuffer(newBuffer);
+					return true;
+				}
+			} catch (IOException e) {
+				this.onError(e);
+				return false;
+			}
+			executor.execute(() -> {
+				ByteBuffer newBuffer;
+				try {
+					newBuffer = pools.allocRawFileBuffer(newCapacity, true);
+				} catch (IOException e) {
+					this.onError(e);
+					return;
+				}
+				synchronized (SegmentData.this) {
+					if (released) {
+						pools.freeRawFileBuffer(newBuffer);
+						return;
+					}
+					growBuffer(newBuffer);
+				}
+				this.receive(pending);
+			});
+			return false;
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			synchronized (SegmentData.this) {
+				error = throwable;
+				if (subscription != null && !complete) {
+					subscription.cancel();
+				}
+				SegmentData.this.notifyAll();
+			}
+			this.future.completeExceptionally(throwable);
+			completion.completeExceptionally(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			synchronized (SegmentData.this) {
+				complete = true;
+				downloadTime = System.nanoTime() - downloadStart;
+				SegmentData.this.notifyAll();
+			}
+			this.future.complete(null);
+			completion.complete(SegmentData.this);
+		}
+
+	}
+
+}
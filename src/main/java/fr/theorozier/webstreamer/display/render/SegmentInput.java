@@ -0,0 +1,93 @@
+package fr.theorozier.webstreamer.display.render;
+
+import fr.theorozier.webstreamer.util.CancellationToken;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+import java.io.IOException;
+
+/**
+ * <p>A single reader of a segment's {@link SegmentData}, to be read once by the
+ * {@link FrameDecoder}. Reads are blocking until the requested bytes are received if the
+ * segment is still being downloaded.</p>
+ * <p>Reads can be done directly to native memory, this is how FFmpeg reads segments
+ * once started, see {@link FrameGrabber.NativeReadable}.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class SegmentInput {
+
+	private final SegmentData data;
+	private final boolean cached;
+	/** Number of bytes already read from the data. */
+	private int position;
+	private boolean released;
+
+	/**
+	 * Construct a reader for the given data, taking ownership of one reference.
+	 * @param data The segment data, already retained for this input.
+	 * @param cached True if the data was already requested, and not downloaded for this input.
+	 */
+	public SegmentInput(SegmentData data, boolean cached) {
+		this.data = data;
+		this.cached = cached;
+	}
+
+	public SegmentData getData() {
+		return this.data;
+	}
+
+	/**
+	 * @return True if the data was already requested, and not downloaded for this input.
+	 */
+	public boolean isCached() {
+		return this.cached;
+	}
+
+	/**
+	 * Read bytes from the segment, blocking until at least one byte is available or
+	 * until the read is cancelled.
+	 * @param token The token cancelling the wait for bytes.
+	 * @return The number of bytes read, or -1 if the end of the segment is reached.
+	 */
+	public int read(byte[] b, int off, int len, CancellationToken token) throws IOException {
+		if (this.released) {
+			throw new IOException("segment input released");
+		}
+		int count = this.data.read(this.position, b, off, len, token);
+		if (count > 0) {
+			this.position += count;
+		}
+		return count;
+	}
+
+	/**
+	 * Read bytes from the segment directly to native memory, blocking until at least one
+	 * byte is available or until the read is cancelled.
+	 * @param address The native address to write to.
+	 * @param len The maximum number of bytes to write.
+	 * @param token The token cancelling the wait for bytes.
+	 * @return The number of bytes read, or -1 if the end of the segment is reached.
+	 */
+	public int read(long address, int len, CancellationToken token) throws IOException {
+		if (this.released) {
+			throw new IOException("segment input released");
+		}
+		int count = this.data.read(this.position, address, len, token);
+		if (count > 0) {
+			this.position += count;
+		}
+		return count;
+	}
+
+	/**
+	 * Release this input's reference to the segment data. This input should not be
+	 * used after.
+	 */
+	public void release() {
+		if (!this.released) {
+			this.released = true;
+			this.data.release();
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+package fr.theorozier.webstreamer.display.render;
+
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+/**
+ * <p>The prefetch window of a {@link DisplayLayerHls}, the number of segments requested
+ * ahead of the current one. The window is chosen from the ratio of the measured download
+ * time of segments to their duration: when downloads take a significant part of a
+ * segment's duration, a single slow download would reach the playback, so more segments
+ * are requested ahead, up to a maximum.</p>
+ * <p>Stalls of the playback are counted along with played segments, so that the stall
+ * rate can be compared for different windows.</p>
+ * <p>The maximum window can be changed with the {@code webstreamer.maxPrefetchSegments}
+ * system property. Every method must be called from the render thread.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class SegmentPrefetch {
+
+	/** Maximum number of segments requested ahead of the current one. */
+	private static final int MAX_WINDOW = Math.max(1, Math.min(8, Integer.getInteger("webstreamer.maxPrefetchSegments", 3)));
+	/** Smoothing factor of the download ratio average, per segment. */
+	private static final double RATIO_SMOOTHING = 0.3;
+	/** The window covers this factor of the download ratio, to absorb slower downloads. */
+	private static final double RATIO_MARGIN = 2.0;
+
+	/** Average ratio of the download time of segments to their duration, -1 if unknown. */
+	private double downloadRatio = -1;
+	/** Number of segments to request ahead of the current one. */
+	private int window = 1;
+
+	/** Number of segments played since startup. */
+	private long segmentCount = 0;
+	/** Number of stalls since startup. */
+	private long stallCount = 0;
+
+	/**
+	 * Push the measure of a segment download, segments read from cache should not be
+	 * pushed because they don't measure the network.
+	 * @param time The download duration, in nanoseconds.
+	 * @param duration The segment duration, in seconds.
+	 */
+	public void pushDownload(long time, double duration) {
+		if (time <= 0 || duration <= 0) {
+			return;
+		}
+		double sample = time / (duration * 1000000000.0);
+		if (this.downloadRatio < 0) {
+			this.downloadRatio = sample;
+		} else {
+			this.downloadRatio += (sample - this.downloadRatio) * RATIO_SMOOTHING;
+		}
+		this.window = (int) Math.max(1, Math.min(MAX_WINDOW, Math.ceil(this.downloadRatio * RATIO_MARGIN)));
+	}
+
+	/**
+	 * @return The number of segments to request ahead of the current one, at least 1.
+	 */
+	public int getWindow() {
+		return this.window;
+	}
+
+	/**
+	 * Count a segment reached by the playback.
+	 * @param stalled True if the segment was not ready to be decoded when reached.
+	 */
+	public void pushSegment(boolean stalled) {
+		this.segmentCount++;
+		if (stalled) {
+			this.stallCount++;
+		}
+	}
+
+	/**
+	 * Count a stall that has not been counted with a segment, such as a reset of the
+	 * playback because its segment is no longer in the playlist.
+	 */
+	public void pushStall() {
+		this.stallCount++;
+	}
+
+	/**
+	 * @return A snapshot of the prefetch window and stalls.
+	 */
+	public SegmentPrefetchStats getStats() {
+		return new SegmentPrefetchStats(this.window, MAX_WINDOW, this.downloadRatio, this.segmentCount, this.stallCount);
+	}
+
+	/**
+	 * State of a prefetch window.
+	 * @param window The number of segments currently requested ahead.
+	 * @param maxWindow The maximum number of segments requested ahead.
+	 * @param downloadRatio The average ratio of download time to segment duration, -1 if unknown.
+	 * @param segments The number of segments played since startup.
+	 * @param stalls The number of stalls since startup.
+	 */
+	public record SegmentPrefetchStats(int window, int maxWindow, double downloadRatio, long segments, long stalls) {
+
+		/**
+		 * @return The number of stalls per played segment.
+		 */
+		public double stallRate() {
+			return this.segments == 0 ? 0.0 : (double) this.stalls / this.segments;
+		}
+
+	}
+
+}
@@ -10,6 +10,7 @@ import fr.theorozier.webstreamer.playlist.Playlist;
 import fr.theorozier.webstreamer.playlist.PlaylistQuality;
 import fr.theorozier.webstreamer.twitch.TwitchClient;
 import fr.theorozier.webstreamer.util.AsyncProcessor;
+import fr.theorozier.webstreamer.util.CompletionQueue;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.minecraft.client.gui.screen.Screen;
@@ -51,7 +52,9 @@ public class DisplayBlockScreen extends Screen {
     private static final Text ERR_CHANNEL_OFFLINE_TEXT = Text.translatable("gui.webstreamer.display.error.channelOffline");
 
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
-    private final AsyncProcessor<String, Playlist, TwitchClient.PlaylistException> asyncPlaylist = new AsyncProcessor<>(WebStreamerClientMod.TWITCH_CLIENT::requestPlaylist, false);
+    /** Completions of the screen's requests, drained on each tick. */
+    private final CompletionQueue completions = new CompletionQueue();
+    private final AsyncProcessor<String, Playlist, TwitchClient.PlaylistException> asyncPlaylist = new AsyncProcessor<>(WebStreamerClientMod.TWITCH_CLIENT::requestPlaylist, this.completions, false);
 
     /** The block entity this screen is opened on. The following fields are temporaries to save later. */
     private final DisplayBlockEntity display;
@@ -366,6 +369,7 @@ public class DisplayBlockScreen extends Screen {
     public void tick() {
 
         super.tick();
+        this.completions.drain();
 
         SourceType sourceType = this.sourceTypeButton.getValue();
 
@@ -1,9 +1,11 @@
 package fr.theorozier.webstreamer.display.source;
 
+import fr.theorozier.webstreamer.playlist.PlaylistQuality;
 import net.minecraft.nbt.NbtCompound;
 import org.jetbrains.annotations.NotNull;
 
 import java.net.URI;
+import java.util.List;
 
 /**
  * <p>This interface is implemented by the various sources types that exists. A display 
@@ -29,6 +31,17 @@ public abstract class DisplaySource implements Cloneable {
      */
     public abstract URI getUri();
     
+    /**
+     * @return The variants of the resource that the display can switch between depending
+     * on playback conditions, from the highest to the lowest quality, including the
+     * variant of the URI returned by {@link #getUri()} as the highest one. This is empty
+     * if the resource has no variant. This function has the same blocking and caching
+     * requirements as {@link #getUri()}.
+     */
+    public List<PlaylistQuality> getVariants() {
+        return List.of();
+    }
+    
     /**
      * Force any internal cache on the URI to be reset, the next call to {@link #getUri()}
      * should recompute the URI, if relevant.
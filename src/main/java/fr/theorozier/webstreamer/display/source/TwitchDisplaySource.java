@@ -9,6 +9,8 @@ import net.minecraft.nbt.NbtCompound;
 import net.minecraft.nbt.NbtString;
 
 import java.net.*;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * <p>A Twitch display source is defined by a Twitch channel and quality, the URI is
@@ -64,6 +66,30 @@ public class TwitchDisplaySource extends DisplaySource {
         return null;
     }
     
+    /**
+     * {@inheritDoc}
+     * For Twitch channels, the selected quality is the highest variant and every other
+     * quality with a lower bandwidth can be used.
+     */
+    @Override
+    public List<PlaylistQuality> getVariants() {
+        if (this.channel != null && this.quality != null) {
+            try {
+                Playlist playlist = WebStreamerClientMod.TWITCH_CLIENT.requestPlaylist(this.channel);
+                PlaylistQuality quality = playlist.getQuality(this.quality);
+                if (quality != null && quality.bandwidth() > 0) {
+                    return playlist.getQualities().stream()
+                            .filter(variant -> variant.bandwidth() > 0 && variant.bandwidth() <= quality.bandwidth())
+                            .sorted(Comparator.comparingLong(PlaylistQuality::bandwidth).reversed())
+                            .toList();
+                }
+            } catch (TwitchClient.PlaylistException e) {
+                WebStreamerMod.LOGGER.error("Failed to request twitch channel", e);
+            }
+        }
+        return List.of();
+    }
+    
     @Override
     public void resetUri() {
         if (this.channel != null) {
@@ -2,11 +2,13 @@ package fr.theorozier.webstreamer.mixin;
 
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
+import net.minecraft.client.render.Frustum;
 import net.minecraft.client.render.VertexConsumer;
 import net.minecraft.client.render.WorldRenderer;
 import net.minecraft.client.util.math.MatrixStack;
 import net.minecraft.util.shape.VoxelShape;
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
 import org.spongepowered.asm.mixin.gen.Invoker;
 
 @Environment(EnvType.CLIENT)
@@ -18,4 +20,7 @@ public interface WorldRendererInvoker {
 		throw new AssertionError();
 	}
 	
+	@Accessor("frustum")
+	Frustum getFrustum();
+	
 }
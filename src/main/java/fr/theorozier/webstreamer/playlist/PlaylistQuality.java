@@ -4,5 +4,12 @@ import java.net.URI;
 
 /**
  * A generic record that maps a quality name to the URI of the resource.
+ * @param bandwidth The peak bandwidth of the resource in bits per second, 0 if unknown.
  */
-public record PlaylistQuality(String name, URI uri) { }
+public record PlaylistQuality(String name, URI uri, long bandwidth) {
+
+	public PlaylistQuality(String name, URI uri) {
+		this(name, uri, 0);
+	}
+
+}
@@ -20,6 +20,7 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Environment(EnvType.CLIENT)
 public class TwitchClient {
@@ -28,6 +29,9 @@ public class TwitchClient {
 	private final String clientId;
 	
 	private final HashMap<String, Playlist> cache = new HashMap<>();
+	/** Lock of the cache, held while requesting, not a monitor so that requests running
+	 * on virtual threads don't pin their carrier thread. */
+	private final ReentrantLock cacheLock = new ReentrantLock();
 	
 	public TwitchClient(String clientId) {
 		this.clientId = clientId;
@@ -111,19 +115,43 @@ public class TwitchClient {
 		
 		for (int i = 4; i < rawLines.size(); i += 3) {
 			String line0 = rawLines.get(i);
+			String line1 = rawLines.get(i - 1);
 			String line2 = rawLines.get(i - 2);
 			int qualityNameStartIdx = line2.indexOf("NAME=\"");
 			int qualityNameStopIdx = line2.indexOf('"', qualityNameStartIdx + 6);
 			String qualityName = line2.substring(qualityNameStartIdx + 6, qualityNameStopIdx);
-			playlist.addQuality(new PlaylistQuality(qualityName, new URI(line0)));
+			playlist.addQuality(new PlaylistQuality(qualityName, new URI(line0), parseBandwidth(line1)));
 		}
 		
 		return playlist;
 		
 	}
 	
+	/**
+	 * Parse the bandwidth attribute of a stream info line.
+	 * @param line The <code>#EXT-X-STREAM-INF</code> line.
+	 * @return The bandwidth in bits per second, 0 if not found.
+	 */
+	private static long parseBandwidth(String line) {
+		int attrsIdx = line.indexOf(':');
+		if (attrsIdx < 0) {
+			return 0;
+		}
+		for (String attr : line.substring(attrsIdx + 1).split(",")) {
+			if (attr.startsWith("BANDWIDTH=")) {
+				try {
+					return Long.parseLong(attr.substring(10));
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 0;
+	}
+	
 	public Playlist requestPlaylist(String channel) throws PlaylistException {
-		synchronized (this.cache) {
+		this.cacheLock.lock();
+		try {
 			Playlist playlist = this.cache.get(channel);
 			if (playlist == null) {
 				try {
@@ -135,12 +163,17 @@ public class TwitchClient {
 				}
 			}
 			return playlist;
+		} finally {
+			this.cacheLock.unlock();
 		}
 	}
 	
 	public void forgetPlaylist(String channel) {
-		synchronized (this.cache) {
+		this.cacheLock.lock();
+		try {
 			this.cache.remove(channel);
+		} finally {
+			this.cacheLock.unlock();
 		}
 	}
 	
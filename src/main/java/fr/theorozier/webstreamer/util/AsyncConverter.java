@@ -0,0 +1,12 @@
+package fr.theorozier.webstreamer.util;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A converter that doesn't block, the conversion is started and completes the returned
+ * future, possibly exceptionally, when done.
+ */
+@FunctionalInterface
+public interface AsyncConverter<FROM, TO> {
+    CompletableFuture<TO> convert(FROM from);
+}
@@ -4,33 +4,59 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 
 import java.util.Iterator;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
 /**
- * <p>A utility for asynchronously process data, using an executor and a future.</p>
- * <p>This class is not thread safe, you should call methods from one thread.</p>
+ * <p>A utility for asynchronously process data, using an executor and a future, or an
+ * asynchronous converter that doesn't need any executor.</p>
+ * <p>Completions are not polled, they are delivered through a {@link CompletionQueue}
+ * and then given to the callbacks of the next {@link #pull} of their key.</p>
+ * <p>Futures that are cleaned up before completion are cancelled, converters should
+ * propagate the cancellation to release their resources, because the cleanup function
+ * is only given completed results.</p>
+ * <p>This class is not thread safe, you should call methods from one thread, the one
+ * draining the completion queue.</p>
  */
 public class AsyncMap<FROM, TO, EXC extends Exception> {
 
     private final Converter<FROM, TO, EXC> converter;
+    private final AsyncConverter<FROM, TO> asyncConverter;
+    private final CompletionQueue completions;
     private final Consumer<TO> cleanup;
     private final Int2ObjectOpenHashMap<TimedFuture<TO>> futures = new Int2ObjectOpenHashMap<>();
     private final long timeout;
 
-    /** Internal future with a timeout. */
-    private record TimedFuture<TO>(Future<TO> future, long time, long timeout) {
+    /** Internal future with a timeout, and its completion once delivered. */
+    private static final class TimedFuture<TO> {
+
+        private final CompletableFuture<TO> future;
+        private final long time;
+        private final long timeout;
+
+        private boolean completed;
+        private TO result;
+        private Throwable error;
+
+        private TimedFuture(CompletableFuture<TO> future, long time, long timeout) {
+            this.future = future;
+            this.time = time;
+            this.timeout = timeout;
+        }
 
         public boolean isTimedOut(long now) {
             return now - this.time >= this.timeout;
         }
 
-        public void cleanup(Consumer<TO> cleanup) {
-            try {
-                cleanup.accept(this.future.get());
-            } catch (InterruptedException | CancellationException | ExecutionException ignored) { }
+        /**
+         * Cancel the future if not yet completed, so that the converter can stop early,
+         * or clean up its result on the given executor, without waiting.
+         */
+        public void cleanup(Executor executor, Consumer<TO> cleanup) {
+            if (!this.future.cancel(false)) {
+                this.future.thenAcceptAsync(cleanup, executor);
+            }
         }
 
     }
@@ -39,42 +65,73 @@ public class AsyncMap<FROM, TO, EXC extends Exception> {
      * Construct an async map.
      * @param converter The function used to convert from the input element to an output,
      *                  allowing a specific exception type.
+     * @param completions The queue delivering completions, drained by the calling thread.
      * @param cleanup The function to clean up timed out futures.
      * @param timeout The timeout for futures to cleanup.
      */
-    public AsyncMap(Converter<FROM, TO, EXC> converter, Consumer<TO> cleanup, long timeout) {
+    public AsyncMap(Converter<FROM, TO, EXC> converter, CompletionQueue completions, Consumer<TO> cleanup, long timeout) {
+        this(converter, null, completions, cleanup, timeout);
+    }
+
+    private AsyncMap(Converter<FROM, TO, EXC> converter, AsyncConverter<FROM, TO> asyncConverter, CompletionQueue completions, Consumer<TO> cleanup, long timeout) {
         this.converter = converter;
+        this.asyncConverter = asyncConverter;
+        this.completions = completions;
         this.cleanup = cleanup;
         this.timeout = timeout;
     }
 
-    public void push(ExecutorService executor, FROM from, int key) {
-        this.futures.computeIfAbsent(key, key0 ->
-            new TimedFuture<>(executor.submit(() -> this.converter.convert(from)), System.nanoTime(), this.timeout)
-        );
+    /**
+     * Construct an async map with a converter that doesn't block, the executor given to
+     * {@link #push} is then not used. Exceptions completing the future of the converter
+     * are expected to be of the exception type.
+     * @see #AsyncMap(Converter, CompletionQueue, Consumer, long)
+     */
+    public static <FROM, TO, EXC extends Exception> AsyncMap<FROM, TO, EXC> ofAsync(AsyncConverter<FROM, TO> converter, CompletionQueue completions, Consumer<TO> cleanup, long timeout) {
+        return new AsyncMap<>(null, converter, completions, cleanup, timeout);
+    }
+
+    public void push(Executor executor, FROM from, int key) {
+        this.futures.computeIfAbsent(key, key0 -> {
+            CompletableFuture<TO> future;
+            if (this.asyncConverter != null) {
+                future = this.asyncConverter.convert(from);
+            } else {
+                CompletableFuture<TO> task = new CompletableFuture<>();
+                executor.execute(() -> {
+                    try {
+                        task.complete(this.converter.convert(from));
+                    } catch (Throwable e) {
+                        task.completeExceptionally(e);
+                    }
+                });
+                future = task;
+            }
+            TimedFuture<TO> timedFuture = new TimedFuture<>(future, System.nanoTime(), this.timeout);
+            // Futures removed before delivery are cleaned up through their future.
+            this.completions.deliver(future, (result, error) -> {
+                timedFuture.completed = true;
+                timedFuture.result = result;
+                timedFuture.error = error;
+            });
+            return timedFuture;
+        });
     }
 
     @SuppressWarnings("unchecked")
     public boolean pull(int key, Consumer<TO> onSuccess, Consumer<EXC> onError) {
         TimedFuture<TO> future = this.futures.get(key);
         if (future != null) {
-            if (future.future.isDone()) {
-                // If the thread is already interrupted, return early to avoid
-                // InterruptedException in "Future::get".
-                if (Thread.interrupted())
-                    return true;
-                try {
-                    onSuccess.accept(future.future.get());
-                } catch (InterruptedException | CancellationException e) {
-                    // Cancel should not happen.
-                } catch (ExecutionException ee) {
+            if (future.completed) {
+                this.futures.remove(key);
+                if (future.error == null) {
+                    onSuccess.accept(future.result);
+                } else if (!(future.error instanceof CancellationException)) {
                     try {
-                        onError.accept((EXC) ee.getCause());
+                        onError.accept((EXC) future.error);
                     } catch (ClassCastException cce) {
                         // In case if runtime exceptions.
                     }
-                } finally {
-                    this.futures.remove(key);
                 }
             }
             return true;
@@ -82,29 +139,25 @@ public class AsyncMap<FROM, TO, EXC extends Exception> {
         return false;
     }
 
-    public void cleanup(ExecutorService executor) {
+    public void cleanup(Executor executor) {
         for (TimedFuture<TO> future : this.futures.values()) {
-            executor.execute(() -> future.cleanup(this.cleanup));
+            future.cleanup(executor, this.cleanup);
         }
         this.futures.clear();
     }
 
-    public void cleanupTimedOut(ExecutorService executor, long now) {
+    public void cleanupTimedOut(Executor executor, long now) {
         Iterator<TimedFuture<TO>> it = this.futures.values().iterator();
         while (it.hasNext()) {
             TimedFuture<TO> item = it.next();
             if (item.isTimedOut(now)) {
-                executor.execute(() -> {
-                    try {
-                        this.cleanup.accept(item.future.get());
-                    } catch (InterruptedException | ExecutionException ignored) { }
-                });
+                item.cleanup(executor, this.cleanup);
                 it.remove();
             }
         }
     }
 
-    public void cleanupTimedOut(ExecutorService executor) {
+    public void cleanupTimedOut(Executor executor) {
         this.cleanupTimedOut(executor, System.nanoTime());
     }
 
@@ -2,15 +2,18 @@ package fr.theorozier.webstreamer.util;
 
 import java.util.Objects;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /**
- * <p>A utility for asynchronously process data, using an executor and a future.</p>
- * <p>This class is not thread safe, you should call methods from one thread.</p>
+ * <p>A utility for asynchronously process data, using an executor and a future, or an
+ * asynchronous converter that doesn't need any executor.</p>
+ * <p>Completions are not polled, they are delivered through a {@link CompletionQueue}
+ * and then given to the callbacks of the next {@link #fetch}.</p>
+ * <p>This class is not thread safe, you should call methods from one thread, the one
+ * draining the completion queue.</p>
  *
  * @param <FROM> Input type of the conversion.
  * @param <TO> Output type of the conversion.
@@ -19,62 +22,106 @@ import java.util.function.Consumer;
 public class AsyncProcessor<FROM, TO, EXC extends Exception> {
 
     private final Converter<FROM, TO, EXC> converter;
-    
+    private final AsyncConverter<FROM, TO> asyncConverter;
+    private final CompletionQueue completions;
+
     /** True to allow two equal values to be pushed one after another. */
     private final boolean allowDuplicates;
 
     private FROM requestedFrom;
     private boolean requested;
-    
-    private Future<TO> future;
+
+    private CompletableFuture<TO> future;
     private FROM futureFrom;
-    
+
+    /** True once the completion of the future has been delivered. */
+    private boolean completed;
+    private TO result;
+    private Throwable error;
+
     /**
      * Construct a new asynchronous value processor.
      * @param converter A converter from input to output type with a specified exception type.
+     * @param completions The queue delivering completions, drained by the calling thread.
      * @param allowDuplicates Set to true if this processor should accept duplicated value when calling {@link #push}.
      *                        This could be useful if the converter function is not stable and can return different
      *                        values for the same input depending on the context. For example with HTTP requests.
      */
-    public AsyncProcessor(Converter<FROM, TO, EXC> converter, boolean allowDuplicates) {
+    public AsyncProcessor(Converter<FROM, TO, EXC> converter, CompletionQueue completions, boolean allowDuplicates) {
+        this(converter, null, completions, allowDuplicates);
+    }
+
+    private AsyncProcessor(Converter<FROM, TO, EXC> converter, AsyncConverter<FROM, TO> asyncConverter, CompletionQueue completions, boolean allowDuplicates) {
         this.converter = converter;
+        this.asyncConverter = asyncConverter;
+        this.completions = completions;
         this.allowDuplicates = allowDuplicates;
     }
 
+    /**
+     * Construct a new asynchronous value processor with a converter that doesn't block, the
+     * executor given to {@link #fetch} is then not used. Exceptions completing the future
+     * of the converter are expected to be of the exception type.
+     * @see #AsyncProcessor(Converter, CompletionQueue, boolean)
+     */
+    public static <FROM, TO, EXC extends Exception> AsyncProcessor<FROM, TO, EXC> ofAsync(AsyncConverter<FROM, TO> converter, CompletionQueue completions, boolean allowDuplicates) {
+        return new AsyncProcessor<>(null, converter, completions, allowDuplicates);
+    }
+
     @SuppressWarnings("unchecked")
-    public void fetch(ExecutorService executor, BiConsumer<FROM, TO> onSuccess, BiConsumer<FROM, EXC> onError) {
-
-        if (this.future != null && this.future.isDone()) {
-            // If the thread is already interrupted, return early to avoid
-            // InterruptedException in "Future::get".
-            if (Thread.interrupted())
-                return;
-            try {
-                onSuccess.accept(this.futureFrom, this.future.get());
-            } catch (InterruptedException | CancellationException e) {
-                // Cancel should not happen.
-            } catch (ExecutionException ee) {
+    public void fetch(Executor executor, BiConsumer<FROM, TO> onSuccess, BiConsumer<FROM, EXC> onError) {
+
+        if (this.completed) {
+            FROM from = this.futureFrom;
+            TO result = this.result;
+            Throwable error = this.error;
+            this.future = null;
+            this.futureFrom = null;
+            this.completed = false;
+            this.result = null;
+            this.error = null;
+            if (error == null) {
+                onSuccess.accept(from, result);
+            } else if (!(error instanceof CancellationException)) {
                 try {
-                    onError.accept(this.futureFrom, (EXC) ee.getCause());
+                    onError.accept(from, (EXC) error);
                 } catch (ClassCastException cce) {
                     // In case if runtime exceptions.
                 }
-            } finally {
-                this.future = null;
-                this.futureFrom = null;
             }
         }
 
         if (this.future == null && this.requested) {
             FROM from = this.requestedFrom;
+            CompletableFuture<TO> future;
+            if (this.asyncConverter != null) {
+                future = this.asyncConverter.convert(from);
+            } else {
+                CompletableFuture<TO> task = new CompletableFuture<>();
+                executor.execute(() -> {
+                    try {
+                        task.complete(this.converter.convert(from));
+                    } catch (Throwable e) {
+                        task.completeExceptionally(e);
+                    }
+                });
+                future = task;
+            }
+            this.future = future;
             this.futureFrom = from;
-            this.future = executor.submit(() -> this.converter.convert(from));
+            this.completions.deliver(future, (result, error) -> {
+                if (this.future == future) {
+                    this.completed = true;
+                    this.result = result;
+                    this.error = error;
+                }
+            });
             this.requested = false;
         }
 
     }
-    
-    public void fetch(ExecutorService executor, Consumer<TO> onSuccess, Consumer<EXC> onError) {
+
+    public void fetch(Executor executor, Consumer<TO> onSuccess, Consumer<EXC> onError) {
         this.fetch(executor, (from, to) -> onSuccess.accept(to), (from, err) -> onError.accept(err));
     }
 
@@ -85,7 +132,7 @@ public class AsyncProcessor<FROM, TO, EXC extends Exception> {
             this.requested = true;
         }
     }
-    
+
     /**
      * If a value is currently pushed, remove it. Doing so will prevent it from being processed by a call to
      * {@link #fetch}. This also reset the last requested value, allowing potential duplicate values in
@@ -95,15 +142,34 @@ public class AsyncProcessor<FROM, TO, EXC extends Exception> {
         this.requestedFrom = null;
         this.requested = false;
     }
-    
+
+    /**
+     * Cancel the current conversion, if any, its result will not be given to {@link #fetch},
+     * the converter should propagate the cancellation to stop early. The pushed value, if
+     * any, is kept.
+     * @return True if a conversion was cancelled before its completion.
+     */
+    public boolean cancel() {
+        if (this.future == null) {
+            return false;
+        }
+        boolean cancelled = this.future.cancel(false);
+        this.future = null;
+        this.futureFrom = null;
+        this.completed = false;
+        this.result = null;
+        this.error = null;
+        return cancelled;
+    }
+
     public boolean requested() {
         return this.requested;
     }
-    
+
     public boolean active() {
         return this.future != null;
     }
-    
+
     public boolean idle() {
         return this.future == null;
     }
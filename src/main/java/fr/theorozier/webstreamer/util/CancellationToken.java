@@ -0,0 +1,32 @@
+package fr.theorozier.webstreamer.util;
+
+/**
+ * <p>A token shared between a blocking task and its owner. The owner cancels it when
+ * the result of the task is no longer needed, and the task checks it while waiting in
+ * order to stop early instead of running to completion.</p>
+ * <p>A token can only be cancelled once, a new token should be given to each new task.</p>
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled;
+
+    /**
+     * Cancel the task owning this token.
+     * @return True if this token was not already cancelled.
+     */
+    public boolean cancel() {
+        if (this.cancelled) {
+            return false;
+        }
+        this.cancelled = true;
+        return true;
+    }
+
+    /**
+     * @return True if the task owning this token has been cancelled.
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+}
@@ -0,0 +1,101 @@
+package fr.theorozier.webstreamer.util;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>A lock-free multiple producers single consumer queue of completion callbacks.
+ * Worker threads post callbacks when their tasks complete, and the consumer thread runs
+ * them when draining the queue, so the consumer doesn't have to poll each pending
+ * future, draining an empty queue costs a single read.</p>
+ * <p>Callbacks may be posted from any thread, but {@link #drain()} must always be called
+ * from the same thread, callbacks are run on that thread in posting order.</p>
+ */
+public class CompletionQueue {
+
+    /** Last posted node, swapped by producers. */
+    private final AtomicReference<Node> tail;
+    /** Last consumed node, only accessed by the consumer, its callback is already run. */
+    private Node head;
+
+    /** Number of callbacks run since startup. */
+    private long drainedCount = 0;
+
+    public CompletionQueue() {
+        Node stub = new Node(null);
+        this.head = stub;
+        this.tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Post a callback to be run on the next drain, from any thread.
+     * @param callback The callback.
+     */
+    public void post(Runnable callback) {
+        Node node = new Node(Objects.requireNonNull(callback));
+        Node prev = this.tail.getAndSet(node);
+        // Between the swap and this link the node is not yet visible to the consumer,
+        // it will be run on a later drain.
+        prev.next = node;
+    }
+
+    /**
+     * Deliver the completion of the given future to a callback run on drain. The
+     * exception given to the callback is unwrapped from {@link CompletionException}.
+     * @param future The future.
+     * @param callback The callback, given the result or the exception, one of them null.
+     */
+    public <T> void deliver(CompletableFuture<T> future, BiConsumer<T, Throwable> callback) {
+        future.whenComplete((result, error) -> this.post(() -> callback.accept(result, unwrap(error))));
+    }
+
+    /**
+     * Run all callbacks posted so far, from the consumer thread.
+     * @return The number of callbacks run.
+     */
+    public int drain() {
+        int count = 0;
+        Node next;
+        while ((next = this.head.next) != null) {
+            Runnable callback = next.callback;
+            next.callback = null;
+            this.head = next;
+            count++;
+            callback.run();
+        }
+        this.drainedCount += count;
+        return count;
+    }
+
+    /**
+     * @return The number of callbacks run since startup, from the consumer thread.
+     */
+    public long getDrainedCount() {
+        return this.drainedCount;
+    }
+
+    /**
+     * @return The cause of a completion exception, or the given exception.
+     */
+    public static Throwable unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+
+    private static final class Node {
+
+        private Runnable callback;
+        private volatile Node next;
+
+        private Node(Runnable callback) {
+            this.callback = callback;
+        }
+
+    }
+
+}
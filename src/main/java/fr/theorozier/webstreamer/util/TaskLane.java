@@ -0,0 +1,187 @@
+package fr.theorozier.webstreamer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * <p>A lane of tasks executed by a fixed number of threads. Queued tasks are ordered by
+ * their priority, lower values first, and then by submission order.</p>
+ * <p>A lane of blocking tasks, such as network requests, can instead run each task on
+ * its own virtual thread when the runtime supports them (Java 21+), tasks then never
+ * wait for a thread and cost no platform thread while blocked. Virtual threads are
+ * created through reflection so that the mod still runs on Java 17, where the fixed
+ * threads are used.</p>
+ * <p>The queue depth and the time waited by tasks before running are measured, see
+ * {@link #getStats()}, this can be used to compare both modes.</p>
+ */
+public class TaskLane implements Executor {
+
+    /** Priority of tasks submitted without priority, they run after prioritized ones. */
+    public static final int DEFAULT_PRIORITY = Integer.MAX_VALUE;
+
+    private final String name;
+    private final int threads;
+    /** The fixed threads, null if tasks run on virtual threads. */
+    private final ThreadPoolExecutor executor;
+    /** Factory of virtual threads, null if tasks run on the fixed threads. */
+    private final ThreadFactory virtualFactory;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final LongAccumulator maxWaitTime = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Construct a lane and its threads, started when tasks are submitted.
+     * @param name The name of the lane, used to name its threads.
+     * @param threads The number of threads.
+     */
+    public TaskLane(String name, int threads) {
+        this(name, threads, false);
+    }
+
+    /**
+     * Construct a lane, on virtual threads if requested and supported by the runtime.
+     * @param name The name of the lane, used to name its threads.
+     * @param threads The number of threads, if not running on virtual threads.
+     * @param virtual True to run tasks on virtual threads if supported.
+     */
+    public TaskLane(String name, int threads, boolean virtual) {
+        this.name = name;
+        this.threads = threads;
+        String threadName = "WebStreamer " + name + " Lane #";
+        this.virtualFactory = virtual ? newVirtualThreadFactory(threadName) : null;
+        if (this.virtualFactory != null) {
+            this.executor = null;
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                    r -> new Thread(r, threadName + counter.getAndIncrement()));
+        }
+    }
+
+    /**
+     * @return True if tasks run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return this.virtualFactory != null;
+    }
+
+    @Override
+    public void execute(@NotNull Runnable command) {
+        this.execute(command, DEFAULT_PRIORITY);
+    }
+
+    /**
+     * Execute a task with the given priority, the priority is ignored if tasks run on
+     * virtual threads, because they all start immediately.
+     * @param command The task.
+     * @param priority The priority, lower values run first.
+     */
+    public void execute(Runnable command, int priority) {
+        Task task = new Task(command, priority, this.sequence.getAndIncrement(), System.nanoTime());
+        if (this.virtualFactory != null) {
+            this.virtualFactory.newThread(task).start();
+        } else {
+            this.executor.execute(task);
+        }
+    }
+
+    /**
+     * @param priority The priority, lower values run first.
+     * @return An executor that executes its tasks on this lane with the given priority.
+     */
+    public Executor withPriority(int priority) {
+        return command -> this.execute(command, priority);
+    }
+
+    /**
+     * @return A snapshot of this lane's activity.
+     */
+    public TaskLaneStats getStats() {
+        long completed = this.completedCount.get();
+        long averageWaitTime = completed == 0 ? 0 : this.totalWaitTime.get() / completed;
+        int queued = this.executor == null ? 0 : this.executor.getQueue().size();
+        return new TaskLaneStats(this.name, this.isVirtual(), this.threads, queued, this.activeCount.get(),
+                completed, averageWaitTime, this.maxWaitTime.get());
+    }
+
+    /**
+     * Create a factory of virtual threads through reflection, as {@code Thread.ofVirtual()}
+     * is only available since Java 21.
+     * @param prefix The prefix of thread names, followed by a counter.
+     * @return The factory, or null if virtual threads are not supported.
+     */
+    private static ThreadFactory newVirtualThreadFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+            builder = nameMethod.invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+
+        private final Runnable command;
+        private final int priority;
+        private final long sequence;
+        /** Time in nanoseconds (monotonic) of the submission. */
+        private final long submitTime;
+
+        private Task(Runnable command, int priority, long sequence, long submitTime) {
+            this.command = command;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.submitTime = submitTime;
+        }
+
+        @Override
+        public void run() {
+            long waitTime = System.nanoTime() - this.submitTime;
+            totalWaitTime.addAndGet(waitTime);
+            maxWaitTime.accumulate(waitTime);
+            activeCount.incrementAndGet();
+            try {
+                this.command.run();
+            } finally {
+                activeCount.decrementAndGet();
+                completedCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(@NotNull Task o) {
+            int cmp = Integer.compare(this.priority, o.priority);
+            return cmp != 0 ? cmp : Long.compare(this.sequence, o.sequence);
+        }
+
+    }
+
+    /**
+     * Activity of a lane.
+     * @param name The name of the lane.
+     * @param virtual True if tasks run on virtual threads.
+     * @param threads The number of fixed threads, unused on virtual threads.
+     * @param queued The number of tasks waiting to run.
+     * @param active The number of tasks running.
+     * @param completed The number of tasks completed since startup.
+     * @param averageWaitTime The average time in nanoseconds waited by tasks before running.
+     * @param maxWaitTime The longest time in nanoseconds waited by a task before running.
+     */
+    public record TaskLaneStats(String name, boolean virtual, int threads, int queued, int active, long completed, long averageWaitTime, long maxWaitTime) { }
+
+}